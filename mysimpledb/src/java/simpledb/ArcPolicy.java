@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha).  Resident pages are split
+ * between T1, pages referenced once recently, and T2, pages referenced at
+ * least twice.  Ghost lists B1 and B2 remember the ids of pages recently
+ * evicted from T1 and T2.  A miss that hits a ghost list shows which of the
+ * two lists was too small, and the target size p of T1 is moved accordingly,
+ * so the policy adapts between recency (scans) and frequency (working sets)
+ * without tuning.
+ * <p/>
+ * All lists are kept least recently used first.
+ */
+public class ArcPolicy implements ReplacementPolicy {
+
+    private final int capacity;
+    private final LinkedHashSet<PageId> t1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> t2 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<PageId>();
+
+    /** target size of t1 */
+    private int p;
+
+    /**
+     * whether the miss being served was found in B2; only read by the
+     * chooseVictim that follows it under the same latch
+     */
+    private boolean missInB2;
+
+    public ArcPolicy(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void recordAccess(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid)) {
+            t2.add(pid);
+        }
+    }
+
+    public boolean recordMiss(PageId pid) {
+        // a retried request finds its ghost gone, so it adapts p only once
+        missInB2 = false;
+        if (b1.contains(pid)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / b1.size(), 1));
+            b1.remove(pid);
+            return true;
+        } else if (b2.contains(pid)) {
+            p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+            b2.remove(pid);
+            missInB2 = true;
+            return true;
+        }
+        return false;
+    }
+
+    public void recordInsert(PageId pid, boolean frequent) {
+        (frequent ? t2 : t1).add(pid);
+        trimGhosts();
+    }
+
+    public void recordRemove(PageId pid) {
+        if (!t1.remove(pid)) {
+            t2.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Evictable evictable) {
+        boolean fromT1 = !t1.isEmpty()
+                && (t1.size() > p || (missInB2 && t1.size() == p));
+        PageId victim = evictFrom(fromT1 ? t1 : t2, evictable);
+        if (victim == null) {
+            fromT1 = !fromT1;
+            victim = evictFrom(fromT1 ? t1 : t2, evictable);
+        }
+        if (victim != null) {
+            (fromT1 ? b1 : b2).add(victim);
+            trimGhosts();
+        }
+        return victim;
+    }
+
+    /**
+     * Keeps the directory within its bounds: |T1| + |B1| <= c and
+     * |T1| + |T2| + |B1| + |B2| <= 2c.
+     */
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            removeOldest(b1);
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity
+                && !(b1.isEmpty() && b2.isEmpty())) {
+            removeOldest(b2.isEmpty() ? b1 : b2);
+        }
+    }
+
+    private static void removeOldest(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+
+    /**
+     * Removes and returns the least recently used evictable page of a list.
+     */
+    private static PageId evictFrom(LinkedHashSet<PageId> list, Evictable evictable) {
+        Iterator<PageId> it = list.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "ARC";
+    }
+}
@@ -1,18 +1,22 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-
-
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import com.sun.corba.se.impl.orbutil.closure.Future;
-import com.sun.corba.se.impl.orbutil.threadpool.TimeoutException;
-
 /**
  * BufferPool manages the reading and writing of pages into memory from
  * disk. Access methods call into it to retrieve pages, and it fetches
@@ -21,6 +25,51 @@ import com.sun.corba.se.impl.orbutil.threadpool.TimeoutException;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p/>
+ * Pages live in a fixed set of frames that is partitioned into shards.  A
+ * page always lives in the shard selected by the hash of its PageId, and each
+ * shard has its own page table, free list, replacement policy and latch (the
+ * shard's monitor), so transactions touching different pages do not contend
+ * with each other.  Disk reads happen outside the shard latch; a frame that is
+ * being filled is marked loading and other requests for the same page wait
+ * for it.
+ * <p/>
+ * The replacement policy is chosen when the pool is created (CLOCK by
+ * default, see {@link ReplacementPolicy.Kind}); the pool counts hits and
+ * misses so that policies can be compared on a workload.
+ * <p/>
+ * Optionally the frames are backed by off-heap memory (a {@link PageArena}):
+ * heap file pages are read straight into their frame and decode tuples from
+ * it on demand, so the pool's size does not add to the garbage collector's
+ * work.  An evicted page is copied to the heap before its frame is reused,
+ * in case some thread still holds it.
+ * <p/>
+ * A thread that reads or changes a page's bytes in place, rather than
+ * through a lock it already holds, pins the page's frame for as long as it
+ * does so, so that the page is not evicted under it and a change made to a
+ * page that has just left the pool is not lost.  Pins are short: a frame is
+ * pinned from the request that returns the page until the change is made
+ * and the page is marked dirty, or the copy is taken.  The bytes themselves
+ * are guarded by the page's own latch (see HeapPage).
+ * <p/>
+ * Dirty pages may be evicted (STEAL).  They are written back first, after
+ * an UPDATE record for them has been forced to the log, so that the log can
+ * undo them if their transaction aborts or the system crashes.  The pages
+ * of a running transaction that logged no BEGIN record are never written
+ * back this way, since there is no log to undo them from.  A background
+ * page cleaner keeps clean frames available: when more than half of a shard
+ * is dirty it writes pages back until only a quarter is.  A request that
+ * still finds nothing but dirty pages in its shard writes some back itself.
+ * A write the cleaner fails is reported to the next caller of flushPages or
+ * flushAllPages.
+ * <p/>
+ * Sequential scans can ask for pages ahead of time with
+ * {@link #prefetchPage}; those reads run on a small pool of background
+ * threads and the pool counts how many prefetched pages were later used.
+ * <p/>
+ * Lock ordering: the pool's monitor, then the LogFile's monitor, then a shard
+ * latch.  A thread holding a shard latch never calls into the LogFile or the
+ * LockManager.
  *
  * @Threadsafe, all fields are final
  */
@@ -31,7 +80,6 @@ public class BufferPool {
     public static final int PAGE_SIZE = 4096;
 
     private static int pageSize = PAGE_SIZE;
-    private int numPages;
 
     /**
      * Default number of pages passed to the constructor. This is used by
@@ -39,32 +87,558 @@ public class BufferPool {
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
-    private List<Page> pages;
-    private List<Long> timeStamps;
-    private LockManager lockManager;
-        
+
+    /**
+     * Pools are only partitioned if every shard gets at least this many
+     * frames; a small pool split many ways would start evicting (or running
+     * out of clean pages) long before it is full.
+     */
+    static final int MIN_PAGES_PER_SHARD = 64;
+
+    /**
+     * Default number of pages a sequential scan reads ahead.
+     */
+    public static final int DEFAULT_READ_AHEAD_PAGES = 8;
+
+    /**
+     * Number of background threads that read prefetched pages, and the
+     * number of prefetch requests that may be queued for them; requests
+     * beyond that are dropped, since prefetching is only a hint.
+     */
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 64;
+
+    /**
+     * How often the page cleaner looks for dirty pages, in milliseconds.
+     */
+    static final long CLEANER_INTERVAL_MS = 100;
+
+    /**
+     * A slot that can hold one resident page.  A loading frame is reserved
+     * for a page that is still being read from disk; if the page is
+     * discarded meanwhile, the read is thrown away.  A prefetched frame was
+     * filled by read-ahead and has not been requested since.  A pinned
+     * frame is in use and is not evicted.  In an off-heap pool each frame
+     * owns a page-sized slice of the arena.
+     */
+    private static class Frame {
+        final ByteBuffer buffer;
+        Page page;
+        boolean loading;
+        boolean discarded;
+        boolean prefetched;
+        boolean frequent;   // from the policy's recordMiss, for recordInsert
+        int pins;
+
+        Frame(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Drops the resident page, first moving it off the frame's memory
+         * if it lives there.
+         */
+        void clear() {
+            if (buffer != null && page instanceof HeapPage) {
+                ((HeapPage) page).detach();
+            }
+            page = null;
+            loading = false;
+            discarded = false;
+            prefetched = false;
+            frequent = false;
+            pins = 0;
+        }
+    }
+
+    /**
+     * One partition of the pool.  All fields, including the replacement
+     * policy's state, are guarded by the shard's monitor.
+     */
+    private static class Shard implements ReplacementPolicy.Evictable {
+        final int capacity;
+        final HashMap<PageId, Frame> pageTable;
+        final ArrayDeque<Frame> freeFrames;
+        final ReplacementPolicy policy;
+        long hits;
+        long misses;
+        long prefetches;
+        long prefetchHits;
+
+        Shard(int capacity, ReplacementPolicy.Kind kind, boolean offHeap) {
+            this.capacity = capacity;
+            pageTable = new HashMap<PageId, Frame>(capacity * 2);
+            freeFrames = new ArrayDeque<Frame>(capacity);
+            PageArena arena = offHeap ? new PageArena(capacity, getPageSize()) : null;
+            for (int i = 0; i < capacity; i++) {
+                freeFrames.add(new Frame(arena != null ? arena.frame(i) : null));
+            }
+            policy = kind.create(capacity);
+        }
+
+        /**
+         * Claims a frame for a page that is about to be read, evicting a
+         * clean page if there is no free frame.  Called right after the
+         * policy's recordMiss for the page.
+         *
+         * @param frequent what recordMiss returned, to pass to recordInsert
+         * once the page is read
+         * @return the frame, or null if every resident page is dirty or
+         * still being read
+         */
+        Frame reserve(PageId pid, boolean frequent) {
+            Frame frame = freeFrames.poll();
+            if (frame == null) {
+                frame = evict();
+            }
+            if (frame != null) {
+                frame.loading = true;
+                frame.frequent = frequent;
+                pageTable.put(pid, frame);
+            }
+            return frame;
+        }
+
+        void release(PageId pid) {
+            Frame frame = pageTable.remove(pid);
+            if (frame != null) {
+                if (!frame.loading) {
+                    policy.recordRemove(pid);
+                }
+                frame.clear();
+                freeFrames.add(frame);
+            }
+        }
+
+        /**
+         * Only clean, unpinned pages are evicted directly; dirty pages have
+         * to be written back (outside the latch) first.
+         */
+        public boolean canEvict(PageId pid) {
+            Frame frame = pageTable.get(pid);
+            return frame != null && !frame.loading && frame.pins == 0 && frame.page.isDirty() == null;
+        }
+
+        /**
+         * Discards the page chosen by the replacement policy and returns its
+         * frame for reuse.
+         *
+         * @return the frame that was freed, or null if no page can be evicted
+         */
+        Frame evict() {
+            PageId victim = policy.chooseVictim(this);
+            if (victim == null) {
+                return null;
+            }
+            Frame frame = pageTable.remove(victim);
+            frame.clear();
+            return frame;
+        }
+
+        /**
+         * @return the ids of up to max resident dirty pages, leaving out
+         * those dirtied by the specified transactions
+         */
+        List<PageId> dirtyPages(int max, Set<TransactionId> skip) {
+            List<PageId> dirty = new ArrayList<PageId>();
+            for (Frame frame : pageTable.values()) {
+                if (dirty.size() == max) {
+                    break;
+                }
+                TransactionId dirtier = frame.loading ? null : frame.page.isDirty();
+                if (dirtier != null && !skip.contains(dirtier)) {
+                    dirty.add(frame.page.getId());
+                }
+            }
+            return dirty;
+        }
+
+        /**
+         * @return the ids of the resident pages with changes logged before
+         * the specified LSN that are not yet written out, leaving out those
+         * dirtied by the specified transactions
+         */
+        List<PageId> pagesDirtiedBefore(long lsn, Set<TransactionId> skip) {
+            List<PageId> old = new ArrayList<PageId>();
+            for (Frame frame : pageTable.values()) {
+                if (frame.loading || !(frame.page instanceof HeapPage)) {
+                    continue;
+                }
+                TransactionId dirtier = frame.page.isDirty();
+                if (dirtier != null && skip.contains(dirtier)) {
+                    continue;
+                }
+                long recLSN = ((HeapPage) frame.page).getRecLSN();
+                if (recLSN != LogFile.NO_LSN && recLSN < lsn) {
+                    old.add(frame.page.getId());
+                }
+            }
+            return old;
+        }
+    }
+
+    /**
+     * Background thread that writes dirty pages back so that requests find
+     * clean frames to evict.  It sleeps between passes, or until a request
+     * finds a shard with no clean page.  Each pass also writes back the
+     * pages changed before the last checkpoint, so that recovery after the
+     * next one starts further along the log.  A pass that fails to write a
+     * page stops there and leaves the failure in cleanerFailure.
+     */
+    private class PageCleaner extends Thread {
+        private volatile boolean running = true;
+        private boolean wakeUp;
+
+        PageCleaner() {
+            super("BufferPool-cleaner");
+            setDaemon(true);
+        }
+
+        synchronized void wakeUp() {
+            wakeUp = true;
+            notifyAll();
+        }
+
+        void shutdown() {
+            running = false;
+            wakeUp();
+        }
+
+        public void run() {
+            while (running) {
+                synchronized (this) {
+                    if (!wakeUp) {
+                        try {
+                            wait(CLEANER_INTERVAL_MS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    wakeUp = false;
+                }
+                long checkpoint = Database.getLogFile().getCheckpointLSN();
+                for (Shard shard : shards) {
+                    if (!running) {
+                        return;
+                    }
+                    List<PageId> toClean;
+                    synchronized (shard) {
+                        if (checkpoint != LogFile.NO_LSN) {
+                            toClean = shard.pagesDirtiedBefore(checkpoint, unlogged);
+                        } else {
+                            toClean = new ArrayList<PageId>();
+                        }
+                        List<PageId> dirty = shard.dirtyPages(shard.capacity, unlogged);
+                        if (dirty.size() * 2 > shard.capacity) {
+                            toClean.addAll(dirty.subList(0, dirty.size() - shard.capacity / 4));
+                        }
+                    }
+                    try {
+                        for (PageId pid : toClean) {
+                            flushPage(pid);
+                        }
+                    } catch (IOException e) {
+                        cleanerFailure = e;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private final int numPages;
+    private final ReplacementPolicy.Kind policy;
+    private final boolean offHeap;
+    private final ExecutorService prefetcher;
+    private volatile PageCleaner cleaner;
+    private volatile boolean closed;
+
+    // pages written back on behalf of each running transaction; their
+    // before images are reset when it commits
+    private final HashMap<TransactionId, Set<PageId>> flushedPages = new HashMap<TransactionId, Set<PageId>>();
+
+    // running transactions that change pages without having logged a
+    // BEGIN record; they are rolled back by dropping their pages, so those
+    // are not stolen
+    private final Set<TransactionId> unlogged = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+    // the failure of a write by the page cleaner, reported to the next
+    // caller of flushPages or flushAllPages
+    private volatile IOException cleanerFailure;
+    private volatile int readAheadPages = DEFAULT_READ_AHEAD_PAGES;
+    private final Shard[] shards;
+    private final LockManager lockManager;
+    private final VersionStore versions = new VersionStore();
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, partitioned
+     * into a number of shards that suits the pool size and the machine.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
-    public BufferPool(int np) {
-    	pages = new ArrayList<Page>();
-    	timeStamps = new ArrayList<Long>();
-    	numPages = np;
-    	lockManager = new LockManager();
+    public BufferPool(int numPages) {
+        this(numPages, defaultShards(numPages), ReplacementPolicy.Kind.CLOCK);
     }
 
-    public int getNumberOfPages(){
-    	return pages.size();
+    /**
+     * Creates a BufferPool that caches up to numPages pages split evenly
+     * across numShards independently latched shards.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; at most numPages.
+     */
+    public BufferPool(int numPages, int numShards) {
+        this(numPages, numShards, ReplacementPolicy.Kind.CLOCK);
     }
-    
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split evenly
+     * across numShards shards, each replacing pages with the given policy.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; at most numPages.
+     * @param policy    the replacement policy used by every shard.
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Kind policy) {
+        this(numPages, numShards, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split evenly
+     * across numShards shards, each replacing pages with the given policy.
+     *
+     * @param numPages  maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; at most numPages.
+     * @param policy    the replacement policy used by every shard.
+     * @param offHeap   whether to keep page bytes in off-heap frames
+     *                  (allocated up front) rather than on the Java heap.
+     */
+    public BufferPool(int numPages, int numShards, ReplacementPolicy.Kind policy, boolean offHeap) {
+        if (numShards < 1 || numShards > numPages) {
+            throw new IllegalArgumentException("need between 1 and " + numPages + " shards, got " + numShards);
+        }
+        this.numPages = numPages;
+        this.policy = policy;
+        this.offHeap = offHeap;
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            int capacity = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            shards[i] = new Shard(capacity, policy, offHeap);
+        }
+        lockManager = new LockManager();
+
+        // idle prefetch threads exit, so an unused pool holds no threads
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(PREFETCH_QUEUE),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        prefetcher = executor;
+    }
+
+    /**
+     * @return the number of shards used for a pool of numPages pages by
+     * default: two per core, as long as each still gets MIN_PAGES_PER_SHARD
+     * frames
+     */
+    static int defaultShards(int numPages) {
+        int byCores = 2 * Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(byCores, numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * @return the number of pages currently resident in the buffer pool
+     */
+    public int getNumberOfPages() {
+        int n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.pageTable.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of shards the pool is partitioned into
+     */
+    public int getNumberOfShards() {
+        return shards.length;
+    }
+
+    /**
+     * @return the replacement policy used by this pool
+     */
+    public ReplacementPolicy.Kind getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return whether page bytes are kept in off-heap frames
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return the number of page requests that found the page resident
+     * since the pool was created or the statistics were reset
+     */
+    public long getHitCount() {
+        long n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.hits;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of page requests that had to read the page from
+     * disk since the pool was created or the statistics were reset
+     */
+    public long getMissCount() {
+        long n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.misses;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the fraction of page requests that were hits, or 0 if there
+     * were no requests
+     */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * @return the number of pages read ahead by {@link #prefetchPage}
+     */
+    public long getPrefetchCount() {
+        long n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.prefetches;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of page requests served by a page that was read
+     * ahead (each prefetched page is counted at most once)
+     */
+    public long getPrefetchHitCount() {
+        long n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.prefetchHits;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Resets the hit, miss and prefetch counts to zero.
+     */
+    public void resetStatistics() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.hits = 0;
+                shard.misses = 0;
+                shard.prefetches = 0;
+                shard.prefetchHits = 0;
+            }
+        }
+    }
+
+    /**
+     * @return how many pages ahead a sequential scan should prefetch; never
+     * more than a quarter of the pool, so small pools do not read ahead
+     */
+    public int getReadAheadPages() {
+        return Math.min(readAheadPages, numPages / 4);
+    }
+
+    /**
+     * Sets how many pages ahead sequential scans prefetch; 0 disables
+     * read-ahead.
+     */
+    public void setReadAheadPages(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead window cannot be negative");
+        }
+        readAheadPages = pages;
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
-    
-    public LockManager getLockManager(){
-    	return lockManager;
+
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Starts a read-only transaction that reads the data as committed now,
+     * without taking any locks, until it completes.  Its page requests get
+     * private copies of the pages as of the snapshot (see VersionStore), so
+     * it neither waits for writers nor holds them up.
+     *
+     * @param tid the ID of the transaction; it must not ask for a page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /**
+     * Starts an optimistic transaction.  Its reads take no locks: they get
+     * private copies of the pages as committed when it started, and the
+     * pages are remembered.  Its writes lock as usual, because they change
+     * the pages in this pool in place.  Before committing it must pass
+     * validate.
+     *
+     * @param tid the ID of the transaction; it must not ask for a page yet
+     */
+    public void beginOptimistic(TransactionId tid) {
+        versions.beginOptimistic(tid);
+    }
+
+    /**
+     * Validates an optimistic transaction about to commit: no other
+     * transaction may have committed a change to a page it read since it
+     * started.  If it is valid, from now on it counts as committed for other
+     * optimistic transactions; snapshots see it once its commit is logged.
+     *
+     * @throws TransactionAbortedException if it is not valid; the caller
+     *                                     must abort it
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException {
+        if (!versions.validate(tid)) {
+            throw new TransactionAbortedException();
+        }
     }
 
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
@@ -87,30 +661,290 @@ public class BufferPool {
      * @param pid  the ID of the requested page
      * @param perm the requested permissions on the page
      */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            checkWritable(tid, pid, perm);
+            return snapshotPage(tid, pid);
+        }
+        if (perm.equals(Permissions.READ_ONLY) && versions.isOptimistic(tid)) {
+            return snapshotPage(tid, pid);
+        }
+        // never block on a lock while holding the pool's monitor
+        lockManager.getLock(tid, pid, perm);
+        return fetchPage(pid);
+    }
+
+    private void checkWritable(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm.equals(Permissions.READ_WRITE) && versions.isSnapshot(tid)) {
+            throw new DbException("read-only transaction " + tid + " asked to write " + pid);
+        }
+    }
+
+    /**
+     * @return a copy of the page as a snapshot or optimistic transaction
+     *         should read it
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid) throws DbException {
+        Page page = fetchPage(pid, true);
+        try {
+            if (!(page instanceof HeapPage)) {
+                return page;
+            }
+            HeapPage hp = (HeapPage) page;
+            synchronized (hp) {
+                return versions.asOf(hp, tid);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not copy " + pid + ": " + e.getMessage());
+        } finally {
+            unpinPage(page);
+        }
+    }
+
+    /**
+     * Retrieve a page whose tuples the transaction is about to add or
+     * change.  A transaction that logs its changes only locks the intention
+     * to write on the page, and then each tuple it adds or changes, by its
+     * RecordId; transactions changing different tuples of a page go on
+     * together, and the page's monitor keeps each change whole.  Any other
+     * transaction can only be rolled back by dropping its pages, so it locks
+     * the whole page.
+     * <p/>
+     * The page is returned pinned; the caller must unpinPage it once it has
+     * made its change and marked the page dirty, or decided not to change it.
+     *
+     * @see #tryLockRecord
+     */
+    Page getPageToUpdate(TransactionId tid, PageId pid) throws TransactionAbortedException, DbException {
+        checkWritable(tid, pid, Permissions.READ_WRITE);
+        if (locksRecords(tid)) {
+            lockManager.getIntentionLock(tid, pid, Permissions.READ_WRITE);
+        } else {
+            lockManager.getLock(tid, pid, Permissions.READ_WRITE);
+            unlogged.add(tid);
+        }
+        return fetchPage(pid, true);
+    }
+
+    /**
+     * Retrieve the page of a tuple the transaction is about to change,
+     * locking the tuple, or the whole page, and pinning the page (see
+     * getPageToUpdate).
+     */
+    Page getPageOfRecord(TransactionId tid, RecordId rid) throws TransactionAbortedException, DbException {
+        checkWritable(tid, rid.getPageId(), Permissions.READ_WRITE);
+        if (locksRecords(tid)) {
+            lockManager.getRecordLock(tid, rid, Permissions.READ_WRITE);
+        } else {
+            lockManager.getLock(tid, rid.getPageId(), Permissions.READ_WRITE);
+            unlogged.add(tid);
+        }
+        return fetchPage(rid.getPageId(), true);
+    }
+
+    /**
+     * Tries to lock a tuple, on a page from getPageToUpdate, that the
+     * transaction is about to add or change, without waiting.  Only needed
+     * if locksRecords(tid).
+     *
+     * @return true if the transaction may go ahead
+     */
+    boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return lockManager.requestRecordLock(tid, rid, Permissions.READ_WRITE);
+    }
+
+    /**
+     * @return true if the transaction locks the tuples it adds or changes
+     * rather than their pages: only a transaction whose changes are logged
+     * tuple by tuple can be rolled back without undoing other transactions'
+     * changes to its pages
+     */
+    boolean locksRecords(TransactionId tid) {
+        return Database.getLogFile().isActive(tid);
+    }
+
+    /**
+     * Look up a page in the pool, reading it from disk (and evicting another
+     * page if necessary) on a miss.  Does not acquire any locks.
+     *
+     * @param pid the ID of the requested page
+     */
+    Page fetchPage(PageId pid) throws DbException {
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Look up a page in the pool like fetchPage(pid), and optionally pin it
+     * so that it stays resident until unpinPage.
+     */
+    Page fetchPage(PageId pid, boolean pin) throws DbException {
+        Shard shard = shardFor(pid);
+        boolean missed = false;
+        boolean frequent = false;   // kept if the request has to be retried
+        while (true) {
+            Frame frame;
+            List<PageId> dirty = null;
+            synchronized (shard) {
+                frame = shard.pageTable.get(pid);
+                if (frame != null && frame.loading) {
+                    try {
+                        shard.wait();   // someone else is reading this page
+                    } catch (InterruptedException e) {
+                        throw new DbException("interrupted while waiting for " + pid + " to be read");
+                    }
+                    continue;
+                }
+                if (frame != null) {
+                    shard.hits++;
+                    if (frame.prefetched) {
+                        frame.prefetched = false;
+                        shard.prefetchHits++;
+                    }
+                    shard.policy.recordAccess(pid);
+                    if (pin) {
+                        frame.pins++;
+                    }
+                    return frame.page;
+                }
+                if (!missed) {
+                    shard.misses++;
+                    missed = true;
+                }
+                frequent |= shard.policy.recordMiss(pid);
+                frame = shard.reserve(pid, frequent);
+                if (frame == null) {
+                    dirty = shard.dirtyPages(Math.max(1, shard.capacity / 4), unlogged);
+                }
+            }
+
+            if (frame == null) {
+                // STEAL: write some of the shard's dirty pages back, then try again
+                if (dirty.isEmpty()) {
+                    throw new DbException("Cannot evict a page: all pages in the buffer pool shard are in use");
+                }
+                PageCleaner pageCleaner = startCleaner();
+                if (pageCleaner != null) {
+                    pageCleaner.wakeUp();
+                }
+                try {
+                    for (PageId victim : dirty) {
+                        flushPage(victim);
+                    }
+                } catch (IOException e) {
+                    throw new DbException("could not write back a dirty page: " + e.getMessage());
+                }
+                continue;
+            }
+
+            Page page = load(shard, pid, frame, pin);
+            if (page != null) {
+                return page;
+            }
+            // discarded while we were reading it; read it again
+        }
+    }
+
+    /**
+     * Releases a pin taken by fetchPage, getPageToUpdate or getPageOfRecord.
+     * Does nothing if the page has left the pool meanwhile (it was
+     * discarded).
+     */
+    void unpinPage(Page page) {
+        Shard shard = shardFor(page.getId());
+        synchronized (shard) {
+            Frame frame = shard.pageTable.get(page.getId());
+            if (frame != null && frame.page == page && frame.pins > 0) {
+                frame.pins--;
+            }
+        }
+    }
+
+    /**
+     * Asks for a page to be read into the pool in the background, if it is
+     * not resident already.  Does not acquire any locks; the page is only
+     * cached, and a transaction must still call getPage to use it.  The
+     * request may be dropped if the background readers are busy or no clean
+     * page can be evicted.
+     *
+     * @param pid the ID of the page that will probably be requested soon
+     */
+    public void prefetchPage(final PageId pid) {
+        final Shard shard = shardFor(pid);
+        synchronized (shard) {
+            if (shard.pageTable.containsKey(pid)) {
+                return;
+            }
+        }
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                Frame frame;
+                synchronized (shard) {
+                    if (shard.pageTable.containsKey(pid)) {
+                        return;
+                    }
+                    frame = shard.reserve(pid, shard.policy.recordMiss(pid));
+                    if (frame == null) {
+                        return;     // only dirty pages to give up
+                    }
+                    frame.prefetched = true;
+                    shard.prefetches++;
+                }
+                try {
+                    load(shard, pid, frame, false);
+                } catch (DbException e) {
+                    // a later getPage will read the page and report the error
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a page into a frame reserved for it, outside the shard latch so
+     * the rest of the shard stays available, and wakes up anyone waiting
+     * for it.
+     *
+     * @param pin whether to pin the page as it is installed
+     * @return the page, or null if it was discarded while being read
+     */
+    private Page load(Shard shard, PageId pid, Frame frame, boolean pin) throws DbException {
+        Page page = null;
+        boolean installed = false;
+        try {
+            page = readPage(pid, frame.buffer);
+        } finally {
+            synchronized (shard) {
+                if (page == null || frame.discarded) {
+                    shard.release(pid);
+                } else {
+                    frame.page = page;
+                    frame.loading = false;
+                    frame.pins = pin ? 1 : 0;
+                    shard.policy.recordInsert(pid, frame.frequent);
+                    installed = true;
+                }
+                shard.notifyAll();
+            }
+        }
+        if (page == null) {
+            throw new DbException("could not read " + pid);
+        }
+        return installed ? page : null;
+    }
 
-    public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException, DbException { 
-    	    	    	
-    	lockManager.getLock(tid, pid, perm);
- 	
-    	for (int i = 0; i < pages.size(); i++){
-    		if (pages.get(i).getId().equals(pid)){
-    			timeStamps.set(i, (long) 0);
-    			return pages.get(i);
-    		}
-    	}
-    	
-        // if it wasn't in the buffer pool
-    	if (pages.size() == numPages){
-    		evictPage();
-    	}
-    	
-    	// get the page from the catalog
-    	Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    	    	
-    	pages.add(page);
-    	timeStamps.add( (long) System.currentTimeMillis());
-    	
-        return page;
+    /**
+     * Reads a page from its file, straight into the frame's memory when the
+     * pool is off-heap and the file supports it.
+     */
+    private Page readPage(PageId pid, ByteBuffer buffer) throws DbException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (buffer == null || !(file instanceof HeapFile) || buffer.capacity() != getPageSize()) {
+            return file.readPage(pid);
+        }
+        try {
+            return ((HeapFile) file).readPage(pid, buffer);
+        } catch (IOException e) {
+            throw new DbException("could not read " + pid + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -123,7 +957,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {                                                       // cosc460
-    	lockManager.releaseLock(pid, tid);
+        lockManager.releaseLock(pid, tid);
     }
 
     /**
@@ -142,40 +976,106 @@ public class BufferPool {
         return lockManager.holdsLock(tid, pid, perm);
     }
 
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * tuple, or on its page or table
+     */
+    public boolean holdsLock(TransactionId tid, RecordId rid, Permissions perm) {
+        return lockManager.holdsRecordLock(tid, rid, perm);
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  A transaction that logged a BEGIN record also gets
+     * its COMMIT or ABORT record written here, before its locks are
+     * released.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
-        
-    	if (commit){    		
-    		flushPages(tid);
-    		
-    		for (Page p : pages){
-    			p.setBeforeImage();
-    		}
-    		
-    	} else {
-    		// all pages that are dirtied by this txn will be replaced by their Catalog version
-    		Catalog c = Database.getCatalog();
-    		
-    		for (Page p : pages){
-    			if (p.isDirty() == tid){ // dirtied by this txn
-    				p = c.getDatabaseFile(p.getId().getTableId()).readPage(p.getId());
-    				releasePage(tid, p.getId());
-    			}
-    		}
-    	}
-    	
-    	lockManager.releaseLocksAndRequests(tid);
+        if (versions.isSnapshot(tid)) {
+            // a snapshot transaction holds no locks and changed nothing
+            versions.end(tid);
+            return;
+        }
+        Set<PageId> written;
+        synchronized (flushedPages) {
+            written = flushedPages.remove(tid);
+        }
+        if (written == null) {
+            written = new HashSet<PageId>();
+        }
+
+        if (commit) {
+            // NO FORCE: only the log has to reach the disk before the commit
+            // returns.  The dirty pages stay in the pool until the cleaner or
+            // an eviction writes them back; their changes are in the log
+            // already, as tuple records, unless they were made some other way.
+            LogFile log = Database.getLogFile();
+            synchronized (log) {
+                for (Page p : dirtyPages(tid)) {
+                    logUnloggedChanges(log, tid, p);
+                    written.add(p.getId());
+                }
+                // the committed version is the before image of the next update
+                for (PageId pid : written) {
+                    Shard shard = shardFor(pid);
+                    synchronized (shard) {
+                        Frame frame = shard.pageTable.get(pid);
+                        if (frame != null && !frame.loading) {
+                            frame.page.setBeforeImage();
+                        }
+                    }
+                }
+            }
+            if (log.isActive(tid)) {
+                log.logCommit(tid);
+            } else {
+                log.force();
+            }
+        } else if (Database.getLogFile().isActive(tid)) {
+            // the changes are undone in place from the log, whether or not
+            // the pages were written back, so that changes other
+            // transactions committed to the same pages are kept
+            LogFile log = Database.getLogFile();
+            synchronized (log) {
+                for (Page p : dirtyPages(tid)) {
+                    logUnloggedChanges(log, tid, p);
+                }
+            }
+            log.logAbort(tid);
+        } else {
+            // a transaction that never logged a BEGIN has nothing to roll
+            // back from.  Its pages are not stolen, so dropping them
+            // restores what is on disk; only a page the caller wrote back
+            // itself with flushPages or flushAllPages keeps its changes
+            for (Page p : dirtyPages(tid)) {
+                discardPage(p.getId());
+            }
+            for (PageId pid : written) {
+                discardPage(pid);
+            }
+        }
+
+        // after the COMMIT record is durable, so no snapshot sees a change
+        // a crash could still undo, and before the locks go, so that a
+        // snapshot that sees the change cannot miss the rest of the
+        // transaction
+        if (commit) {
+            versions.committed(tid);
+        } else {
+            versions.aborted(tid);
+        }
+        versions.end(tid);
+        unlogged.remove(tid);
+        lockManager.releaseLocksAndRequests(tid);
     }
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other
+     * acquire a write lock on the slot the tuple is added to, or on its page
+     * (see getPageToUpdate), and any other
      * pages that are updated (Lock acquisition is not needed until lab5).                                  // cosc460
      * May block if the lock(s) cannot be acquired.
      * <p/>
@@ -189,20 +1089,21 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        
-    	DbFile f = Database.getCatalog().getDatabaseFile(tableId);
-    	//HeapFile hf = (HeapFile) f;
-    	ArrayList<Page> dirtiedPages = f.insertTuple(tid, t);
-    	
-    	for (int i = 0; i < dirtiedPages.size(); i++) {
-    		dirtiedPages.get(i).markDirty(true, tid); // changed 0 to i
-    	}
+
+        startCleaner();
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        ArrayList<Page> dirtiedPages = f.insertTuple(tid, t);
+
+        for (int i = 0; i < dirtiedPages.size(); i++) {
+            dirtiedPages.get(i).markDirty(true, tid);
+        }
     }
 
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from and any
-     * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * Will acquire a write lock on the tuple, or on the page it is removed
+     * from (see getPageToUpdate), and any other pages that are updated. May
+     * block if the lock(s) cannot be acquired.
      * <p/>
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have
@@ -213,23 +1114,65 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        
-    	PageId pid = t.getRecordId().getPageId();
-    	HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    	p.markDirty(true, tid);
-    	p.deleteTuple(t);
+
+        startCleaner();
+        HeapPage p = (HeapPage) getPageOfRecord(tid, t.getRecordId());
+        try {
+            // a page is marked clean before it is written out, so mark it
+            // dirty only after the change is made
+            p.deleteTuple(tid, t, versions);
+            p.markDirty(true, tid);
+        } finally {
+            unpinPage(p);
+        }
+    }
+
+    /**
+     * Starts the page cleaner if it is not running yet.  Called on every
+     * change, so the pool's monitor is only taken until the cleaner runs.
+     *
+     * @return the page cleaner, or null if the pool is closed
+     */
+    private PageCleaner startCleaner() {
+        PageCleaner c = cleaner;
+        if (c != null || closed) {
+            return c;
+        }
+        synchronized (this) {
+            if (cleaner == null && !closed) {
+                cleaner = new PageCleaner();
+                cleaner.start();
+            }
+            return cleaner;
+        }
+    }
+
+    /**
+     * Stops the background threads of this pool.  Dirty pages are not
+     * written out.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (cleaner != null) {
+            cleaner.shutdown();
+            cleaner = null;
+        }
+        prefetcher.shutdownNow();
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     * break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        for (Page p : pages){
-        	//if (p.isDirty() != null){
-        		flushPage(p.getId());
-        	//}
+        reportCleanerFailure();
+        List<PageId> resident = new ArrayList<PageId>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                resident.addAll(shard.pageTable.keySet());
+            }
+        }
+        for (PageId pid : resident) {
+            flushPage(pid);
         }
     }
 
@@ -239,97 +1182,184 @@ public class BufferPool {
      * buffer pool doesn't keep a rolled back page in its
      * cache.
      */
-    public synchronized void discardPage(PageId pid) {
-        for (Page p : pages){
-        	if (p.getId().equals(pid)){
-        		pages.remove(p);
-        		timeStamps.remove(p);
-        		return;
-        	}
+    public void discardPage(PageId pid) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            Frame frame = shard.pageTable.get(pid);
+            if (frame != null && frame.loading) {
+                // the copy being read may predate whatever made the caller
+                // discard the page
+                frame.discarded = true;
+            } else if (frame != null) {
+                shard.release(pid);
+            }
         }
     }
 
     /**
-     * Flushes a certain page to disk 
+     * Flushes a certain page to disk
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        // find it
-    	Page toFlush = null;
-    	
-    	for (Page p : pages){
-    		if (p.getId().equals(pid)){
-    			toFlush = p;
-    			// append an update record to the log, with 
-    	        // a before-image and after-image.
-    	    	TransactionId dirtier = toFlush.isDirty();
-    	        if (dirtier != null){
-    	            Database.getLogFile().logWrite(dirtier, toFlush.getBeforeImage(), toFlush);
-    	            Database.getLogFile().force();
-    	        }
-    		}
-    	}
-    	
-    	DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	table.writePage(toFlush);
-    	toFlush.markDirty(false, new TransactionId());
+    private void flushPage(PageId pid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Page image;
+        HeapPage hp = null;
+        // the image is taken under the log's monitor, so that it is not taken
+        // halfway through a rollback.  It is written out after the monitor
+        // is released; a rollback that writes the page meanwhile writes a
+        // newer image, which this one does not overwrite (see HeapPage.write)
+        synchronized (log) {
+            Shard shard = shardFor(pid);
+            Page toFlush;
+            TransactionId dirtier;
+            synchronized (shard) {
+                Frame frame = shard.pageTable.get(pid);
+                if (frame == null || frame.loading) {
+                    return;
+                }
+                toFlush = frame.page;
+                dirtier = toFlush.isDirty();
+                if (dirtier == null) {
+                    return;
+                }
+                // marked clean before the after image is taken, so a change
+                // made meanwhile leaves the page dirty again
+                toFlush.markDirty(false, null);
+            }
+
+            // the image is taken, and logged if need be, under the page's
+            // monitor, so it is logged after every tuple record it reflects
+            // and before any it does not
+            image = toFlush;
+            if (toFlush instanceof HeapPage) {
+                hp = (HeapPage) toFlush;
+                synchronized (hp) {
+                    logUnloggedChanges(log, dirtier, hp);
+                    image = hp.snapshot();
+                }
+            } else {
+                logUnloggedChanges(log, dirtier, toFlush);
+            }
+
+            // a page changed only by committed transactions needs no undo
+            if (hp == null || hp.isModifiedSinceBeforeImage()) {
+                synchronized (flushedPages) {
+                    Set<PageId> written = flushedPages.get(dirtier);
+                    if (written == null) {
+                        written = new HashSet<PageId>();
+                        flushedPages.put(dirtier, written);
+                    }
+                    written.add(pid);
+                }
+            }
+        }
+
+        // the page keeps its recLSN until the image is on disk, so a
+        // checkpoint taken meanwhile still redoes it
+        boolean onDisk = false;
+        try {
+            if (hp == null) {
+                log.force();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            } else {
+                // write-ahead: the records the image reflects are on disk first
+                long pageLSN = ((HeapPage) image).getPageLSN();
+                if (pageLSN != LogFile.NO_LSN) {
+                    log.force(pageLSN);
+                }
+                hp.write((HeapPage) image);
+            }
+            onDisk = true;
+        } finally {
+            if (hp != null) {
+                hp.flushed(onDisk);
+            }
+        }
+    }
+
+    /**
+     * Logs a page as an UPDATE record, with its before and after images, if
+     * it has changes that no tuple log record describes.  Pages other than
+     * HeapPages are always logged this way.
+     */
+    private void logUnloggedChanges(LogFile log, TransactionId tid, Page p) throws IOException {
+        if (!(p instanceof HeapPage)) {
+            log.logWrite(tid, p.getBeforeImage(), p);
+            return;
+        }
+        HeapPage hp = (HeapPage) p;
+        synchronized (hp) {
+            if (hp.hasUnloggedChanges()) {
+                hp.recordLSN(log.logWrite(tid, hp.getBeforeImage(), hp));
+                hp.setLogged();
+            }
+        }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-    	for (Page p : pages){
-    		if (p.isDirty() != null){
-	    		if (p.isDirty().equals(tid)){
-	    			flushPage(p.getId());
-    			}
-    		}
-    	}
-    }
-
-    /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     */
-    private synchronized void evictPage() throws DbException {
-    	
-    	int lruIndex = 0;
-    	boolean canEvict = false;
-    	long earliest = Long.MAX_VALUE;
-    	
-//    	for (int i = 0; i < pages.size(); i++){
-//    		if (timeStamps.get(i) < earliest){
-//    			if (pages.get(i) != null){
-//    				lruIndex = i;
-//    			}
-//    		}
-//    	}
-    	
-    	for (int i = 0; i < pages.size(); i++){
-    		if (timeStamps.get(i) < earliest){
-    			if (pages.get(i).isDirty() == null){
-    				lruIndex = i;
-    				canEvict = true;
-    			}
-    		}
-    	}
-
-    	// evict page at lruIndex
-    	HeapPage hp = (HeapPage) pages.get(lruIndex);
-    	
-    	//try {
-    		//flushPage(hp.getId());
-    	if (canEvict){
-    		pages.remove(hp);
-    		timeStamps.remove(lruIndex);
-    	} else {
-    		throw new DbException("Cannot 'vict");
-    	}
-		
-//    	} catch (IOException e) {
-//    		throw new DbException("Page wasn't flushed or evicted");
-//    	}	
-    } 
+    public void flushPages(TransactionId tid) throws IOException {
+        reportCleanerFailure();
+        for (Page p : dirtyPages(tid)) {
+            flushPage(p.getId());
+        }
+    }
+
+    /**
+     * Throws, once, the last failure of the page cleaner to write a page.
+     */
+    private void reportCleanerFailure() throws IOException {
+        IOException failure = cleanerFailure;
+        if (failure != null) {
+            cleanerFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the dirty page table: the resident pages with logged changes
+     * that may not be on disk yet, each with the LSN of the first record
+     * that describes those changes
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        Map<PageId, Long> table = new HashMap<PageId, Long>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Map.Entry<PageId, Frame> entry : shard.pageTable.entrySet()) {
+                    Frame frame = entry.getValue();
+                    if (frame.loading || !(frame.page instanceof HeapPage)) {
+                        continue;
+                    }
+                    long recLSN = ((HeapPage) frame.page).getRecLSN();
+                    if (recLSN != LogFile.NO_LSN) {
+                        table.put(entry.getKey(), recLSN);
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return the resident pages currently dirtied by the specified transaction
+     */
+    private List<Page> dirtyPages(TransactionId tid) {
+        List<Page> dirty = new ArrayList<Page>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Frame frame : shard.pageTable.values()) {
+                    if (frame.loading) {
+                        continue;
+                    }
+                    TransactionId dirtier = frame.page.isDirty();
+                    if (dirtier != null && dirtier.equals(tid)) {
+                        dirty.add(frame.page);
+                    }
+                }
+            }
+        }
+        return dirty;
+    }
 }
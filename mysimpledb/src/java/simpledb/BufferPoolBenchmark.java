@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures buffer pool throughput under contention.  A number of threads
+ * repeatedly request random pages of a table that fits in the pool, first
+ * through a pool with a single shard (one latch for everything) and then
+ * through a pool partitioned into several shards.
+ * <p/>
+ * Usage: java simpledb.BufferPoolBenchmark [threads] [seconds] [shards]
+ * <p/>
+ * Each thread uses its own transaction and read locks, so the lock manager is
+ * exercised as well; pass "fetch" as a fourth argument to bypass locking and
+ * measure the page table alone.
+ */
+public class BufferPoolBenchmark {
+
+    private static final int TABLE_PAGES = 512;
+    private static final int POOL_PAGES = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : BufferPool.defaultShards(POOL_PAGES);
+        boolean fetchOnly = args.length > 3 && args[3].equals("fetch");
+
+        HeapFile table = createTable(TABLE_PAGES);
+        try {
+            System.out.println(threads + " threads, " + seconds + "s per run, "
+                    + TABLE_PAGES + " pages, " + (fetchOnly ? "no locking" : "read locks"));
+            report("1 shard", run(table, 1, threads, seconds, fetchOnly), seconds);
+            report(shards + " shards", run(table, shards, threads, seconds, fetchOnly), seconds);
+        } finally {
+            table.getFile().delete();
+        }
+    }
+
+    private static void report(String label, long requests, int seconds) {
+        System.out.println(String.format("%-10s %12d page requests/s", label, requests / seconds));
+    }
+
+    /**
+     * Creates a table of empty pages in a temporary file.
+     */
+    static HeapFile createTable(int pages) throws IOException {
+        File f = File.createTempFile("bpbench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".lsn").deleteOnExit();   // its page LSNs
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        for (int i = 1; i < pages; i++) {
+            table.writePage(new HeapPage(new HeapPageId(table.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        return table;
+    }
+
+    /**
+     * @return the number of page requests completed by all threads
+     */
+    static long run(final HeapFile table, int shards, int threads, int seconds, final boolean fetchOnly)
+            throws InterruptedException {
+        final BufferPool bp = new BufferPool(POOL_PAGES, shards);
+        final int pages = table.numPages();
+        final AtomicLong requests = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    TransactionId tid = new TransactionId();
+                    long done = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            for (int j = 0; j < 1000; j++) {
+                                PageId pid = new HeapPageId(table.getId(), rand.nextInt(pages));
+                                if (fetchOnly) {
+                                    bp.fetchPage(pid);
+                                } else {
+                                    bp.getPage(tid, pid, Permissions.READ_ONLY);
+                                }
+                            }
+                            done += 1000;
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    requests.addAndGet(done);
+                }
+            };
+            workers[i].start();
+        }
+
+        deadline[0] = System.nanoTime() + seconds * 1000000000L;
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        return requests.get();
+    }
+}
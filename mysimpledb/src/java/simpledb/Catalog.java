@@ -132,6 +132,18 @@ public class Catalog {
         return tableNames.get(id);
     }
 
+    /**
+     * Closes the files the tables keep open between accesses (see
+     * HeapFile); they are opened again if the tables are used later.
+     */
+    void closeFiles() throws IOException {
+        for (DbFile file : tables.values()) {
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).closeLSNFile();
+            }
+        }
+    }
+
     /**
      * Delete all tables from the catalog
      */
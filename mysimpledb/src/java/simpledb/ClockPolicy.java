@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement.  Resident pages sit in a circular array
+ * of slots, each with a referenced bit that is set on every hit.  The clock
+ * hand sweeps the slots, clearing referenced bits, and evicts the first
+ * evictable page whose bit is already clear.
+ * <p/>
+ * Cheap, but a large sequential scan touches every page once and can push
+ * the whole working set out.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final PageId[] slots;
+    private final boolean[] referenced;
+    private final HashMap<PageId, Integer> slotOf;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        slots = new PageId[capacity];
+        referenced = new boolean[capacity];
+        slotOf = new HashMap<PageId, Integer>(capacity * 2);
+        freeSlots = new ArrayDeque<Integer>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    public void recordAccess(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    public boolean recordMiss(PageId pid) {
+        return false;
+    }
+
+    public void recordInsert(PageId pid, boolean frequent) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            throw new IllegalStateException("no free slot for " + pid);
+        }
+        slots[slot] = pid;
+        referenced[slot] = true;
+        slotOf.put(pid, slot);
+    }
+
+    public void recordRemove(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.add(slot);
+        }
+    }
+
+    public PageId chooseVictim(Evictable evictable) {
+        // the first sweep may do nothing but clear reference bits
+        for (int i = 0; i < 2 * slots.length; i++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+
+            PageId pid = slots[slot];
+            if (pid == null || !evictable.canEvict(pid)) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            recordRemove(pid);
+            return pid;
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "CLOCK";
+    }
+}
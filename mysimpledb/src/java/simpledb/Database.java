@@ -65,6 +65,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.close();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -81,7 +82,14 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.close();
+        try {
+            old._catalog.closeFiles();
+            old._logfile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 }
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +11,13 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p/>
+ * The LSN of each page (see HeapPage#getPageLSN) is kept next to the file,
+ * in a file of the same name with ".lsn" appended, because the page layout
+ * has no room for it.  That file holds the id of the log the LSNs belong to,
+ * followed by one long per page; LSNs recorded against another log are not
+ * used.  The file is opened once and its log id checked once per log, under
+ * the HeapFile's lock, rather than on every page read or write.
  *
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
@@ -18,6 +27,11 @@ public class HeapFile implements DbFile {
 
 	private File file;
 	private TupleDesc tupleDesc;
+	// the file of page LSNs, and the log it holds the LSNs of (if it has a
+	// log id at all); guarded by this
+	private RandomAccessFile lsnRaf;
+	private long lsnLogId;
+	private boolean lsnHasLogId;
     /**
      * Constructs a heap file backed by the specified file.
      * @param f the file that stores the on-disk backing store for this heap
@@ -79,7 +93,9 @@ public class HeapFile implements DbFile {
 	    		HeapPageId hpid = (HeapPageId) pid;
 	    		//System.out.println("4");
 		    	data.close();
-		    	return new HeapPage(hpid, byteArray);
+		    	HeapPage page = new HeapPage(hpid, byteArray);
+		    	page.setPageLSN(readPageLSN(pageNumber));
+		    	return page;
 			} catch (FileNotFoundException e) {
 				System.err.println("File not found in HeapFile.readPage()");
 				e.printStackTrace();
@@ -92,14 +108,155 @@ public class HeapFile implements DbFile {
     		
     }
 
+    /**
+     * Reads the specified page into a page-sized buffer supplied by the
+     * caller (an off-heap BufferPool frame) and returns a HeapPage that works
+     * directly on that buffer.
+     *
+     * @see BufferPool
+     */
+    HeapPage readPage(PageId pid, ByteBuffer frame) throws IOException {
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        long offset = (long) pid.pageNumber() * BufferPool.getPageSize();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, offset + dst.position()) < 0) {
+                    break;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        // a short read leaves zeroes, like reading into a fresh array
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+        HeapPage page = new HeapPage((HeapPageId) pid, frame);
+        page.setPageLSN(readPageLSN(pid.pageNumber()));
+        return page;
+    }
+
     // see DbFile.java for javadocs
     
     public void writePage(Page page) throws IOException {
     	RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        int offset = page.getId().pageNumber() * BufferPool.getPageSize();
-        raf.skipBytes(offset);
+        long offset = (long) page.getId().pageNumber() * BufferPool.getPageSize();
+        raf.seek(offset);   // skipBytes stops at the end of the file
         raf.write(page.getPageData());
         raf.close();
+        // written after the page, so a crash in between leaves an LSN that
+        // is too old, which only makes recovery redo more than it needs to
+        long lsn = page instanceof HeapPage ? ((HeapPage) page).getPageLSN() : LogFile.NO_LSN;
+        writePageLSN(page.getId().pageNumber(), lsn);
+    }
+
+    /**
+     * Writes several pages of this file, in page order, opening the file
+     * once; then records their LSNs, also in one go.  Recovery writes out
+     * every page it changed this way, one table at a time.
+     *
+     * @param pages pages of this file
+     */
+    public void writePages(Collection<? extends Page> pages) throws IOException {
+        List<Page> sorted = new ArrayList<Page>(pages);
+        Collections.sort(sorted, new Comparator<Page>() {
+            public int compare(Page a, Page b) {
+                return Integer.compare(a.getId().pageNumber(), b.getId().pageNumber());
+            }
+        });
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (Page page : sorted) {
+                raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+                raf.write(page.getPageData());
+            }
+        } finally {
+            raf.close();
+        }
+
+        synchronized (this) {
+            RandomAccessFile lsns = openLSNFile(true);
+            for (Page page : sorted) {
+                long lsn = page instanceof HeapPage ? ((HeapPage) page).getPageLSN() : LogFile.NO_LSN;
+                lsns.seek((long) (page.getId().pageNumber() + 1) * LogFile.LONG_SIZE);
+                lsns.writeLong(lsn);
+            }
+        }
+    }
+
+    private File lsnFile() {
+        return new File(file.getPath() + ".lsn");
+    }
+
+    /**
+     * @return the LSN recorded for a page, or LogFile.NO_LSN if there is none
+     * for the current log
+     */
+    private synchronized long readPageLSN(int pageNo) throws IOException {
+        RandomAccessFile raf = openLSNFile(false);
+        long offset = (long) (pageNo + 1) * LogFile.LONG_SIZE;
+        if (raf == null || raf.length() < offset + LogFile.LONG_SIZE) {
+            return LogFile.NO_LSN;
+        }
+        raf.seek(offset);
+        return raf.readLong();
+    }
+
+    private synchronized void writePageLSN(int pageNo, long lsn) throws IOException {
+        RandomAccessFile raf = openLSNFile(true);
+        raf.seek((long) (pageNo + 1) * LogFile.LONG_SIZE);
+        raf.writeLong(lsn);
+    }
+
+    /**
+     * Opens the file of page LSNs the first time it is needed and reads the
+     * id of the log it holds the LSNs of, so that later calls only compare
+     * that id with the current log's.  The caller holds this HeapFile's
+     * lock.
+     *
+     * @param create whether to create the file, or empty it if it holds the
+     *               LSNs of another log, rather than return null
+     * @return the file of page LSNs, or null
+     */
+    private RandomAccessFile openLSNFile(boolean create) throws IOException {
+        long logId = Database.getLogFile().getLogId();
+        if (lsnRaf == null) {
+            File f = lsnFile();
+            if (!create && !f.exists()) {
+                return null;
+            }
+            lsnRaf = new RandomAccessFile(f, "rw");
+            lsnHasLogId = lsnRaf.length() >= LogFile.LONG_SIZE;
+            if (lsnHasLogId) {
+                lsnLogId = lsnRaf.readLong();
+            }
+        }
+        if (!lsnHasLogId || lsnLogId != logId) {
+            if (!create) {
+                return null;
+            }
+            // recorded against another log: start over
+            lsnRaf.setLength(0);
+            lsnRaf.seek(0);
+            lsnRaf.writeLong(logId);
+            lsnLogId = logId;
+            lsnHasLogId = true;
+        }
+        return lsnRaf;
+    }
+
+    /**
+     * Closes the file of page LSNs, if it is open; it is opened again when
+     * it is next needed.
+     */
+    synchronized void closeLSNFile() throws IOException {
+        if (lsnRaf != null) {
+            lsnRaf.close();
+            lsnRaf = null;
+        }
     }
 
     /**
@@ -116,48 +273,87 @@ public class HeapFile implements DbFile {
         
     	ArrayList<Page> returnArray = new ArrayList<Page>();
     	BufferPool b = Database.getBufferPool();
-    	HeapPage hp = null;
-    	    	
-    	for (int i = 0; i < numPages(); i++){
-    		
-			hp = (HeapPage) b.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-    		if (hp.getNumEmptySlots() > 0){
-    			hp.insertTuple(t);
-    			writePage(hp);
-    			returnArray.add(hp);
-    			return returnArray;
+    	// the same for every page tried
+    	boolean lockSlots = b.locksRecords(tid);
+
+    	// when the pages are all full, add an empty page to the file and fill
+    	// it in the buffer pool like any other page.  Its contents reach the
+    	// disk when the buffer pool writes it back.
+    	for (int i = 0; ; i++) {
+    		HeapPageId pid = i < numPages() ? new HeapPageId(getId(), i) : allocatePage();
+    		HeapPage hp = (HeapPage) b.getPageToUpdate(tid, pid);
+    		try {
+    			if (insertInto(b, tid, hp, t, lockSlots)) {
+    				// dirty before the pin goes, so it cannot be evicted
+    				// without being written back
+    				hp.markDirty(true, tid);
+    				returnArray.add(hp);
+    				return returnArray;
+    			}
+    		} finally {
+    			b.unpinPage(hp);
     		}
+    		i = Math.max(i, pid.pageNumber());
     	}
-    	
-    	// pages were all full, doing it here
-    	hp = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());    	
-    	hp.insertTuple(t);    	
-    	    	
-    	OutputStream output = new BufferedOutputStream(new FileOutputStream(file, true), BufferPool.getPageSize());	
-    	output.write(hp.getPageData(), 0, BufferPool.getPageSize());
-    	writePage(hp);
-    	
-    	output.flush();
-    	output.close();
-    	
-    	returnArray.add(hp);
-    	return returnArray;
+    }
+
+    /**
+     * Puts a tuple in the first empty slot of a page, or if lockSlots in the
+     * first one the transaction can lock.  A slot emptied by a transaction
+     * that is still running stays locked by it, so that it can put its tuple
+     * back if it rolls back.
+     *
+     * @return false if there is no such slot
+     */
+    private boolean insertInto(BufferPool b, TransactionId tid, HeapPage hp, Tuple t, boolean lockSlots)
+            throws DbException, IOException {
+    	synchronized (hp) {
+    		for (int slot = 0; slot < hp.numSlots; slot++) {
+    			if (!hp.isSlotUsed(slot)
+    					&& (!lockSlots || b.tryLockRecord(tid, new RecordId(hp.getId(), slot)))) {
+    				hp.insertTuple(tid, t, slot, b.getVersionStore());
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * Appends an empty page to the end of the file.
+     *
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId allocatePage() throws IOException {
+    	HeapPageId pid = new HeapPageId(getId(), numPages());
+    	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    	try {
+    		raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+    		raf.write(HeapPage.createEmptyPageData());
+    	} finally {
+    		raf.close();
+    	}
+    	writePageLSN(pid.pageNumber(), LogFile.NO_LSN);
+    	return pid;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
     	    	
     	ArrayList<Page> returnArray = new ArrayList<Page>();
     	
     	RecordId rid = t.getRecordId();
     	BufferPool b = Database.getBufferPool();
-    	Page p = b.getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
-    	HeapPage hp = (HeapPage) p;
-    	
-    	//System.out.println("Calling HeapPage delete tuple from HF");
-    	hp.deleteTuple(t);
-    	return returnArray; 
+    	HeapPage hp = (HeapPage) b.getPageOfRecord(tid, rid);
+    	try {
+    		hp.deleteTuple(tid, t, b.getVersionStore());
+    		hp.markDirty(true, tid);
+    		returnArray.add(hp);
+    	} finally {
+    		b.unpinPage(hp);
+    	}
+    	return returnArray;
     }
 
     // see DbFile.java for javadocs
@@ -173,6 +369,12 @@ public class HeapFile implements DbFile {
 		private TransactionId transactionId;
 		private boolean iteratorOpen;
 		private BufferPool bp;
+
+		// read-ahead state: the scan has to move forward page by page a few
+		// times before pages are prefetched, and each page is asked for once
+		private static final int SEQUENTIAL_TRIGGER = 2;
+		private int sequentialPages;
+		private int prefetchedThrough;
 		
 		public HeapFileIterator(HeapFile hpFile, TransactionId tid){
 			hf = hpFile;
@@ -205,6 +407,7 @@ public class HeapFile implements DbFile {
 			pageNum++;
 			HeapPageId hpid = null;
 			while (pageNum < numPages()){
+				readAhead();
 				hpid = new HeapPageId(hf.getId(), pageNum);
 				HeapPage hp = (HeapPage) bp.getPage(transactionId, hpid, Permissions.READ_ONLY);
 				tuples = hp.iterator();
@@ -219,6 +422,23 @@ public class HeapFile implements DbFile {
 			return false;	
 		}
 
+		/**
+		 * Called as the scan moves on to page pageNum.  Once the scan has
+		 * proven sequential, keeps the pages of the read-ahead window
+		 * beyond it on their way into the buffer pool.
+		 */
+		private void readAhead() {
+			if (++sequentialPages < SEQUENTIAL_TRIGGER) {
+				return;
+			}
+			int window = bp.getReadAheadPages();
+			int last = Math.min(pageNum + window, numPages() - 1);
+			for (int p = Math.max(pageNum + 1, prefetchedThrough + 1); p <= last; p++) {
+				bp.prefetchPage(new HeapPageId(hf.getId(), p));
+			}
+			prefetchedThrough = Math.max(prefetchedThrough, last);
+		}
+
 		@Override
 		public Tuple next() throws TransactionAbortedException, DbException {
 			if (!iteratorOpen) {
@@ -234,6 +454,8 @@ public class HeapFile implements DbFile {
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
 			pageNum = 0;
+			sequentialPages = 0;
+			prefetchedThrough = 0;
 			//System.out.println("1");
 			HeapPageId hpid = new HeapPageId(hf.getId(), pageNum);
 			//System.out.println("In heapfile iterator open, calling getPage");
@@ -252,9 +474,11 @@ public class HeapFile implements DbFile {
 		@Override
 		public void rewind() throws DbException, TransactionAbortedException {
 			// go to beginning of the whole heapfile
+			pageNum = 0;
+			sequentialPages = 0;
+			prefetchedThrough = 0;
 			HeapPageId hpid = new HeapPageId(hf.getId(), pageNum);
 			HeapPage firstPage = (HeapPage) Database.getBufferPool().getPage(transactionId, hpid, Permissions.READ_ONLY);
-			pageNum = 0;
 			tuples = firstPage.iterator();
 		}
 
@@ -2,10 +2,26 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p/>
+ * The page keeps its raw on-disk bytes (header followed by tuple slots) in a
+ * ByteBuffer and decodes tuples from them on demand; inserts and deletes
+ * write straight into the bytes.  The buffer is either a private heap buffer
+ * or, when the BufferPool uses an off-heap frame store, the frame's slice of
+ * direct memory; in the latter case the pool calls {@link #detach()} before it
+ * reuses the frame.
+ * <p/>
+ * The bytes are guarded by a reader/writer latch that is only held while
+ * they are read or changed, so that a reader never sees half of a change
+ * and readers do not hold each other up.  Changes are also made under the
+ * page's monitor, which a writer may keep across several steps (finding a
+ * slot and filling it, say) to keep other writers out; readers never take
+ * it for the bytes.  Lock order: the page's monitor, then its latch.
  *
  * @see HeapFile
  * @see BufferPool
@@ -14,14 +30,39 @@ public class HeapPage implements Page {
 
     HeapPageId pid;
     TupleDesc td;
-    byte header[];
-    Tuple tuples[];
     int numSlots;
+    int headerSize;
+    int tupleSize;
+    private ByteBuffer data;
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
     boolean isDirty = false;
     TransactionId dirtyId;
-    
+
+    // null while the page is unchanged since the last setBeforeImage();
+    // the before image is only copied when the page is first modified
     byte[] oldData;
-    private final Byte oldDataLock = new Byte((byte) 0);
+    private final Object oldDataLock = new Object();
+
+    // true once the page is changed in a way that no tuple log record
+    // describes (insertTuple or deleteTuple without a transaction); such
+    // changes can only be logged as a full page image
+    private boolean unloggedChanges;
+
+    // the LSN of the last log record that describes a change to this page,
+    // and of the first one since the page was last written out (its recLSN)
+    private long pageLSN = LogFile.NO_LSN;
+    private long recLSN = LogFile.NO_LSN;
+    // the recLSN of the images that are on their way to disk, and how many
+    // there are
+    private long flushingRecLSN = LogFile.NO_LSN;
+    private int flushing;
+
+    // images from snapshot() are numbered, so that an older one is never
+    // written out over a newer one (see write)
+    private long images;                // guarded by the page's monitor
+    private long imageNo;               // of an image
+    private final Object writeLock = new Object();
+    private long written;               // guarded by writeLock
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -43,27 +84,43 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, copyOf(data));
+    }
+
+    /**
+     * Create a HeapPage that works directly on the given page-sized buffer,
+     * without copying it.  Only absolute gets and puts are used, so the
+     * buffer's position and limit do not matter.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) {
         pid = id;
         td = Database.getCatalog().getTupleDesc(id.getTableId());
         numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        headerSize = getHeaderSize();
+        tupleSize = td.getSize();
+        this.data = data;
+    }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+    private static ByteBuffer copyOf(byte[] data) {
+        ByteBuffer copy = ByteBuffer.allocate(BufferPool.getPageSize());
+        copy.put(data, 0, Math.min(data.length, copy.capacity()));
+        return copy;
+    }
 
-        tuples = new Tuple[numSlots];
+    /**
+     * Moves the page's bytes from a buffer pool frame to a private heap
+     * buffer, so that the frame can be reused while other threads still hold
+     * a reference to this page.
+     */
+    synchronized void detach() {
+        latch.writeLock().lock();
         try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+            if (data.isDirect()) {
+                data = ByteBuffer.wrap(getPageData());
+            }
+        } finally {
+            latch.writeLock().unlock();
         }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /**
@@ -96,7 +153,7 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid, oldDataRef);
+            return new HeapPage(pid, oldDataRef != null ? oldDataRef : getPageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -107,42 +164,64 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
         }
     }
 
     /**
-     * @return the PageId associated with this page.
+     * @return true if the page has been modified since the last
+     * setBeforeImage()
      */
-    public HeapPageId getId() {
-    	return pid;
+    boolean isModifiedSinceBeforeImage() {
+        synchronized (oldDataLock) {
+            return oldData != null;
+        }
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Saves the current contents as the before image, unless the page has
+     * already been modified since the last setBeforeImage().
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
             }
-            return null;
         }
+    }
 
-        // read fields in the tuple
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+    	return pid;
+    }
+
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
+    /**
+     * Decodes the tuple stored in a used slot.  Must hold the latch.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+
+        int offset = slotOffset(slotId);
         try {
             for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                Type type = td.getFieldType(j);
+                if (type == Type.INT_TYPE) {
+                    t.setField(j, new IntField(data.getInt(offset)));
+                } else {
+                    ByteBuffer field = data.duplicate();
+                    field.clear();
+                    field.position(offset);
+                    t.setField(j, type.parse(new DataInputStream(new ByteBufferInputStream(field))));
+                }
+                offset += type.getLen();
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
@@ -153,75 +232,77 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p/>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @return A byte array correspond to the bytes of this page.
-     * @see #HeapPage
+     * Reads from a ByteBuffer, starting at its position.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i = 0; i < header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
 
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
 
-                }
-                continue;
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
             }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
 
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+    /**
+     * Encodes a tuple into a slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        int offset = slotOffset(slotId);
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f.getType() == Type.INT_TYPE) {
+                data.putInt(offset, ((IntField) f).getValue());
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(f.getType().getLen());
                 try {
-                    f.serialize(dos);
-
+                    f.serialize(new DataOutputStream(baos));
                 } catch (IOException e) {
+                    // this really shouldn't happen
                     e.printStackTrace();
                 }
+                byte[] bytes = baos.toByteArray();
+                for (int k = 0; k < bytes.length; k++) {
+                    data.put(offset + k, bytes[k]);
+                }
             }
+            offset += f.getType().getLen();
         }
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p/>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     * @see #HeapPage
+     */
+    public byte[] getPageData() {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        latch.readLock().lock();
         try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            ByteBuffer src = data.duplicate();
+            src.clear();
+            src.get(bytes, 0, Math.min(bytes.length, src.remaining()));
+        } finally {
+            latch.readLock().unlock();
         }
-
-        return baos.toByteArray();
+        return bytes;
     }
 
     /**
@@ -246,17 +327,41 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+    	delete(t);
+    	unloggedChanges = true;
+    }
+
+    /**
+     * Deletes the specified tuple on behalf of a transaction, and logs the
+     * deletion (with the tuple's bytes, so that it can be undone) before
+     * anyone else can see the page.  The tuple's bytes are also kept for
+     * snapshot transactions.
+     *
+     * @param tid      the transaction deleting the tuple
+     * @param t        the tuple to delete
+     * @param versions the buffer pool's store of changes for snapshots
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    synchronized void deleteTuple(TransactionId tid, Tuple t, VersionStore versions) throws DbException, IOException {
+    	byte[] bytes = getSlotData(t.getRecordId().tupleno());
+    	delete(t);
+    	versions.changed(tid, t.getRecordId(), bytes);
+    	recordLSN(Database.getLogFile().logDelete(tid, t.getRecordId(), bytes));
+    }
+
+    private void delete(Tuple t) throws DbException {
     	PageId pageId = t.getRecordId().getPageId();
     	int tupleNum = t.getRecordId().tupleno();
-    	if (tupleNum > numSlots || pageId != pid){
+    	if (tupleNum >= numSlots || !pid.equals(pageId)){
     		throw new DbException("Such a tuple did not exist");
     	}
     	if (isSlotUsed(tupleNum) == false){
     		throw new DbException("Tuple was already empty");
     	}
-    	//System.out.println("Effectively deleting a tuple here");
-    	markSlotUsed(tupleNum, false);
+    	captureBeforeImage();
+    	clearSlot(tupleNum);
     }
 
     /**
@@ -267,31 +372,247 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
+    	insert(t);
+    	unloggedChanges = true;
+    }
+
+    /**
+     * Adds the specified tuple on behalf of a transaction, and logs the
+     * insertion before anyone else can see the page.
+     *
+     * @param tid      the transaction adding the tuple
+     * @param t        the tuple to add
+     * @param versions the buffer pool's store of changes for snapshots
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *                     is mismatch.
+     */
+    synchronized void insertTuple(TransactionId tid, Tuple t, VersionStore versions) throws DbException, IOException {
+    	insert(t);
+    	versions.changed(tid, t.getRecordId(), null);
+    	recordLSN(Database.getLogFile().logInsert(tid, t.getRecordId(), getSlotData(t.getRecordId().tupleno())));
+    }
+
+    /**
+     * Adds the specified tuple in a given empty slot on behalf of a
+     * transaction, and logs the insertion.  Used when the slot has to be
+     * locked first.
+     *
+     * @param tid      the transaction adding the tuple
+     * @param t        the tuple to add
+     * @param slot     the empty slot to put it in
+     * @param versions the buffer pool's store of changes for snapshots
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    synchronized void insertTuple(TransactionId tid, Tuple t, int slot, VersionStore versions) throws DbException, IOException {
+    	if (isSlotUsed(slot)){
+    		throw new DbException("Slot " + slot + " is in use");
+    	}
+    	insert(t, slot);
+    	versions.changed(tid, t.getRecordId(), null);
+    	recordLSN(Database.getLogFile().logInsert(tid, t.getRecordId(), getSlotData(slot)));
+    }
+
+    private void insert(Tuple t) throws DbException {
     	if (getNumEmptySlots() == 0){
     		throw new DbException("This page is full");
     	}
-    	if (!td.equals(t.getTupleDesc())){
-    		throw new RuntimeException("Tuple does not match pages tupledesc");
-    	}
-    	
     	int pageNo = 0;
     	while(isSlotUsed(pageNo)){
     		pageNo++;
     	}
-    	tuples[pageNo] = t;
+    	insert(t, pageNo);
+    }
+
+    private void insert(Tuple t, int pageNo) {
+    	if (!td.equals(t.getTupleDesc())){
+    		throw new RuntimeException("Tuple does not match pages tupledesc");
+    	}
+    	captureBeforeImage();
+    	latch.writeLock().lock();
+    	try {
+    		writeTuple(pageNo, t);
+    		markSlotUsed(pageNo, true);
+    	} finally {
+    		latch.writeLock().unlock();
+    	}
     	t.setRecordId(new RecordId(pid, pageNo));
- 	    // not updating the number of free slots.
-    	// 484 Free -> add tuple -> 484 free
-    	// mark slot used?
-    	markSlotUsed(pageNo, true);
+    }
+
+    /**
+     * @return a copy of the raw bytes of a slot
+     */
+    byte[] getSlotData(int slot) {
+        byte[] bytes = new byte[tupleSize];
+        latch.readLock().lock();
+        try {
+            for (int i = 0; i < tupleSize; i++) {
+                bytes[i] = data.get(slotOffset(slot) + i);
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores raw tuple bytes in a slot and marks it used.  Used to redo an
+     * insert or undo a delete from the log.
+     */
+    synchronized void setSlot(int slot, byte[] bytes) {
+        latch.writeLock().lock();
+        try {
+            int offset = slotOffset(slot);
+            for (int i = 0; i < tupleSize; i++) {
+                data.put(offset + i, bytes[i]);
+            }
+            markSlotUsed(slot, true);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Empties a slot.  Used to redo a delete or undo an insert from the log.
+     */
+    synchronized void clearSlot(int slot) {
+        latch.writeLock().lock();
+        try {
+            markSlotUsed(slot, false);
+            // empty slots are stored as zeroes
+            int offset = slotOffset(slot);
+            for (int i = 0; i < tupleSize; i++) {
+                data.put(offset + i, (byte) 0);
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the page.  Used to restore a before image
+     * from the log.
+     */
+    synchronized void setPageData(byte[] bytes) {
+        latch.writeLock().lock();
+        try {
+            for (int i = 0; i < bytes.length; i++) {
+                data.put(i, bytes[i]);
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the page has changes that are not described by tuple
+     * log records, so that it has to be logged as a full page image
+     */
+    synchronized boolean hasUnloggedChanges() {
+        return unloggedChanges;
+    }
+
+    /**
+     * Records that the current contents have been logged as a full page
+     * image.
+     */
+    synchronized void setLogged() {
+        unloggedChanges = false;
+    }
+
+    /**
+     * @return the LSN of the last log record that describes a change to
+     * this page, or LogFile.NO_LSN if it is not known
+     */
+    synchronized long getPageLSN() {
+        return pageLSN;
+    }
+
+    synchronized void setPageLSN(long lsn) {
+        pageLSN = lsn;
+    }
+
+    /**
+     * Records that the log record with the specified LSN describes the
+     * latest change to this page.
+     */
+    synchronized void recordLSN(long lsn) {
+        pageLSN = lsn;
+        if (recLSN == LogFile.NO_LSN) {
+            recLSN = lsn;
+        }
+    }
+
+    /**
+     * @return the LSN of the first log record that describes a change not
+     * yet written out, or LogFile.NO_LSN if there is none
+     */
+    synchronized long getRecLSN() {
+        if (flushingRecLSN == LogFile.NO_LSN) {
+            return recLSN;
+        }
+        if (recLSN == LogFile.NO_LSN) {
+            return flushingRecLSN;
+        }
+        return Math.min(recLSN, flushingRecLSN);
+    }
+
+    /**
+     * Copies the page, with its page LSN, to be written out; changes made
+     * after this are the ones that are not on disk.
+     */
+    synchronized HeapPage snapshot() throws IOException {
+        HeapPage copy = new HeapPage(pid, getPageData());
+        copy.pageLSN = pageLSN;
+        copy.imageNo = ++images;
+        // still reported until the copy is written; see flushed
+        if (recLSN != LogFile.NO_LSN) {
+            flushingRecLSN = flushingRecLSN == LogFile.NO_LSN ? recLSN : Math.min(flushingRecLSN, recLSN);
+        }
+        recLSN = LogFile.NO_LSN;
+        flushing++;
+        return copy;
+    }
+
+    /**
+     * Writes an image from snapshot() to the page's file, unless a newer
+     * image of this page has been written already.  Images are written one
+     * at a time, without the page's monitor, so that the page can be
+     * changed while its image is on its way to disk.
+     */
+    void write(HeapPage image) throws IOException {
+        synchronized (writeLock) {
+            if (image.imageNo <= written) {
+                return;
+            }
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            written = image.imageNo;
+        }
+    }
+
+    /**
+     * Called once a snapshot has been written out, or has failed to be, in
+     * which case its changes still have to be redone.  The recLSN of the
+     * snapshots on their way to disk is reported until the last of them is
+     * done.
+     */
+    synchronized void flushed(boolean written) {
+        if (!written && flushingRecLSN != LogFile.NO_LSN) {
+            recLSN = recLSN == LogFile.NO_LSN ? flushingRecLSN : Math.min(recLSN, flushingRecLSN);
+        }
+        if (flushing > 0) {
+            flushing--;
+        }
+        if (flushing == 0) {
+            flushingRecLSN = LogFile.NO_LSN;
+        }
     }
 
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         isDirty = dirty; // can mark something as clean or dirty
         if (dirty){
         	dirtyId = tid;
@@ -303,7 +624,7 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
     	if (isDirty){
             return dirtyId;
     	} else {
@@ -316,11 +637,16 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
     	int numEmptySlots = 0;
-        for (int i = 0; i < tuples.length; i++){
-        	if (!isSlotUsed(i)){
-        		numEmptySlots++;
-        	}
-        }
+    	latch.readLock().lock();
+    	try {
+    		for (int i = 0; i < numSlots; i++){
+    			if (!slotUsed(i)){
+    				numEmptySlots++;
+    			}
+    		}
+    	} finally {
+    		latch.readLock().unlock();
+    	}
         //System.out.println(numEmptySlots + " numEmptySlots in method");
         return numEmptySlots;
     }
@@ -333,15 +659,24 @@ public class HeapPage implements Page {
     	if(i>=numSlots || i<0){
     		throw new IllegalArgumentException("Illegal argument");
     	}
-    	
+    	latch.readLock().lock();
+    	try {
+    		return slotUsed(i);
+    	} finally {
+    		latch.readLock().unlock();
+    	}
+    }
+
+    // must hold the latch
+    private boolean slotUsed(int i) {
     	int bit = i%8;
     	int byt = i/8;
     	
-    	if (byt > getHeaderSize()-1){
+    	if (byt > headerSize-1){
     		return false;
     	}
     	
-    	byte whichByte = header[byt];
+    	byte whichByte = data.get(byt);
     	if ((1<<bit & whichByte) != 0){
     		return true;
     	}
@@ -359,14 +694,14 @@ public class HeapPage implements Page {
     	
     	int mask = (int) Math.pow(2,(bit));
     	
-    	byte headerByte = header[byt];
+    	byte headerByte = data.get(byt);
     	if (value) {
     		// marking the slot as used
-    		this.header[i/8] = (byte) (headerByte | mask);
+    		data.put(byt, (byte) (headerByte | mask));
     	} else {
     		// marking the slot as free
     		int inverted_mask = 255 ^ mask;
-    		this.header[i/8] = (byte) (headerByte & inverted_mask);
+    		data.put(byt, (byte) (headerByte & inverted_mask));
     	}
     }
 
@@ -380,47 +715,50 @@ public class HeapPage implements Page {
        return new HeapPageIterator();
     }
     
+    /**
+     * Finds each used slot and decodes its tuple while holding the latch
+     * once, so that a tuple is never read half changed, or from a slot
+     * that was emptied after it was found.
+     */
     public class HeapPageIterator implements Iterator<Tuple> {
 
     	public int tupleIndex = 0;
-    	//public boolean iteratorOpen;
-    	
+    	private Tuple next;
+
     	public boolean hasNext() {
-    		
-    		///System.out.println("HeapPAgeIterator numSlots: "+numSlots);
-    		
-    		
-    		for (int i = tupleIndex; i < numSlots; i++) {
-    			
-    			//System.out.println("Tuple at position "+ i + ": "+tuples[i]);
-    			
-    			if (isSlotUsed(i)) { // if a slot is occupied, it has a tuple
-    				//System.out.println("Slot at "+i+" is occupied");
-    				tupleIndex = i;
-    				return true;
+    		if (next != null) {
+    			return true;
+    		}
+    		latch.readLock().lock();
+    		try {
+    			for (int i = tupleIndex; i < numSlots; i++) {
+    				if (slotUsed(i)) { // if a slot is occupied, it has a tuple
+    					tupleIndex = i + 1;
+    					next = readTuple(i);
+    					return true;
+    				}
     			}
+    			tupleIndex = numSlots;
+    		} finally {
+    			latch.readLock().unlock();
     		}
     		return false;
     	}
-    	
+
     	public Tuple next() {
-//    		if (!iteratorOpen){
-//    			throw new RuntimeException("Iterator not open");
-//    		}
     		if (!hasNext()){
     			throw new RuntimeException("No next tuple");
     		}
-    		tupleIndex++;
-    		Tuple next = tuples[tupleIndex-1];
-    		
-    		return next;
+    		Tuple t = next;
+    		next = null;
+    		return t;
     	}
 
 		@Override
 		public void remove() {
 
 		}
-    }   	
+    }
     
 }
 
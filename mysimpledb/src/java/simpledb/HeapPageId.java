@@ -35,15 +35,14 @@ public class HeapPageId implements PageId {
     }
 
     /**
-     * @return a hash code for this page, represented by the concatenation of
-     * the table number and the page number (needed if a PageId is used as a
-     * key in a hash table in the BufferPool, for example.)
+     * @return a hash code for this page, combining the table number and the
+     * page number (needed if a PageId is used as a key in a hash table in the
+     * BufferPool, for example.)  Computed arithmetically since it is on the
+     * path of every page request.
      * @see BufferPool
      */
     public int hashCode() {
-    	String code = new String();
-    	code = tId + "\t" + pNum;
-        return code.hashCode();
+    	return 31 * tId + pNum;
     }
 
     /**
@@ -1,174 +1,1119 @@
 package simpledb;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Table-, page- and record-level locks, in the modes of multiple granularity
+ * locking.
+ * <p/>
+ * A transaction that locks a page first takes the matching intention lock
+ * on the page's table: IS before a shared (S) page lock, IX before an
+ * exclusive (X) one.  A record, named by its RecordId, is locked the same
+ * way under intention locks on its table and its page, so transactions that
+ * change different tuples of a page can go on together; the page's monitor
+ * (see HeapPage) keeps each change whole.  A lock on a whole table or page
+ * in S, SIX or X covers everything below it, so no locks are taken under it.
+ * Once a transaction holds escalationThreshold page and record locks on one
+ * table, its next request locks the whole table instead (S or X, joined with
+ * the mode it already holds), and the locks the table lock covers are given
+ * up.  An intention lock on a page is kept while the transaction holds one
+ * of its records in a mode the table lock does not cover (X under SIX), so
+ * nobody can lock the page and read past the record lock.  A large scan so costs one lock, not one per page.  See LockMode for
+ * the modes and which of them go together.
+ * <p/>
+ * Each table's, page's or record's LockEntry holds the transactions that have the lock
+ * and a FIFO queue of the requests waiting for it.  A waiting transaction
+ * sleeps on its entry, and a release hands the lock to the requests at the
+ * head of the queue that it is now compatible with, in the order they
+ * arrived, before waking them.  A new request never jumps the queue, so a
+ * writer is not starved by a stream of readers.  A transaction that already
+ * holds the lock and asks for a stronger mode (an upgrade) waits ahead of
+ * every other request, for the other holders to leave.  An upgrade that a
+ * waiting upgrade needs to see released would wait for it forever, so it is
+ * refused at once.
+ * <p/>
+ * Deadlocks are found on a waits-for graph.  A transaction waits for the
+ * holders of the lock it asked for whose modes conflict with it, and for the
+ * requests queued ahead of it.  When a request
+ * has to wait, the graph is searched from its transaction for a cycle back to
+ * it, and the youngest transaction on the cycle (the one with the highest id)
+ * is aborted: it has done the least work.  A request that is still waiting
+ * after DETECT_INTERVAL_MS searches again, for the cycles no new request
+ * closed.  A wait that is not part of a deadlock is never given up.
+ * <p/>
+ * Under heavy contention the search can cost more than the deadlocks it
+ * finds, so deadlocks can be prevented instead (see DeadlockPolicy).  Those
+ * policies order transactions by their ids: a lower id is older.  A
+ * transaction that is restarted after an abort should keep its
+ * TransactionId, so that it grows older and eventually wins.
+ * <p/>
+ * The entries a transaction holds and the requests it has queued are kept
+ * in an index by transaction, so that committing or aborting it only visits
+ * its own locks.  The index is made of concurrent sets, updated under the
+ * monitor of the entry that changes.  It also keeps the mode the transaction
+ * holds on each table and how many of its pages and records it has locked,
+ * so a page covered by a table lock is granted without looking at any entry.
+ * An entry is dropped once nobody holds or waits for it, so the table of
+ * entries only holds the locks in use.
+ * <p/>
+ * The table of entries is split into STRIPES stripes, each with its own
+ * monitor, held only to find, add or drop an entry.  A shared lock on a page, or
+ * an IS or IX lock on a table, that nobody holds or waits for in a
+ * conflicting mode takes no monitor at all: the transaction adds itself to
+ * the entry's concurrent map of "fast" holders and then checks that the
+ * entry is still fast.  Those modes never conflict with each other.  Any
+ * other request marks the entry slow before it looks at the fast holders, so
+ * one of the two always sees the other; the request then waits for the fast
+ * holders it conflicts with to leave, and a fast holder that leaves a slow
+ * entry wakes it.
+ * <p/>
+ * The state of a lock is guarded by its entry, apart from the fast holders
+ * and the slow flag.  The LockManager's monitor only serializes the searches
+ * for deadlocks; a search holds it and takes the entries' monitors in turn,
+ * and an entry is dropped holding its stripe's monitor and then its own.  No thread holds an entry's monitor while it asks for a stripe's or
+ * the LockManager's.
+ */
 public class LockManager {
-		
+
+	/**
+	 * How long a request waits before it applies the deadlock policy again,
+	 * in milliseconds.
+	 */
+	public static final long DETECT_INTERVAL_MS = 500;
+
+	/**
+	 * Number of stripes the table of entries is split into; a power of two.
+	 */
+	static final int STRIPES = 64;
+
+	/**
+	 * Number of page and record locks a transaction may hold on one table
+	 * before it locks the whole table instead, unless setEscalationThreshold says
+	 * otherwise.
+	 */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+	/**
+	 * How the LockManager deals with deadlocks.
+	 */
+	public enum DeadlockPolicy {
+		/** wait, and abort the youngest transaction on a cycle of waits */
+		DETECT,
+		/** abort a request that cannot be granted at once */
+		NO_WAIT,
+		/** an older transaction waits for younger ones; a younger one asking
+		 * for a lock an older one is in the way of is aborted */
+		WAIT_DIE,
+		/** an older transaction aborts ("wounds") the younger ones in its
+		 * way; a younger one waits for older ones */
+		WOUND_WAIT
+	}
+
+	/**
+	 * The modes a table or page can be locked in, weakest first.
+	 */
+	public enum LockMode {
+		/** intention shared: some of what is below will be read */
+		IS,
+		/** intention exclusive: some of what is below will be written */
+		IX,
+		/** shared: everything below is read */
+		S,
+		/** shared and intention exclusive: everything below is read, and some
+		 * of it written */
+		SIX,
+		/** exclusive: everything below is written */
+		X;
+
+		private static final boolean[][] COMPATIBLE = {
+				//        IS     IX     S      SIX    X
+				/* IS  */ {true,  true,  true,  true,  false},
+				/* IX  */ {true,  true,  false, false, false},
+				/* S   */ {true,  false, true,  false, false},
+				/* SIX */ {true,  false, false, false, false},
+				/* X   */ {false, false, false, false, false}
+		};
+
+		/**
+		 * @return true if two transactions may hold the two modes at once
+		 */
+		public boolean compatibleWith(LockMode other) {
+			return COMPATIBLE[ordinal()][other.ordinal()];
+		}
+
+		/**
+		 * @return the weakest mode that allows everything both modes allow;
+		 * the other mode may be null
+		 */
+		public LockMode join(LockMode other) {
+			if (other == null || other == this || other == IS) {
+				return this;
+			}
+			if (this == IS) {
+				return other;
+			}
+			if (this == X || other == X) {
+				return X;
+			}
+			return SIX;
+		}
+
+		/**
+		 * @return true if this mode allows everything the other allows
+		 */
+		public boolean covers(LockMode other) {
+			return join(other) == this;
+		}
+
+		/**
+		 * @return the intention mode a table must be held in before a page of
+		 * it is locked in this mode
+		 */
+		public LockMode intention() {
+			return this == IS || this == S ? IS : IX;
+		}
+	}
+
 	public class LockEntry {
-		ArrayList<TransactionId> tids = new ArrayList<TransactionId>();
-		boolean lockType = false; // false = readers only (tids can be any size), true = write lock (tids.size() must be 1)
-	}
-	
-	HashMap<PageId, LockEntry> lockTable = new HashMap<PageId, LockEntry>();
-	
-	HashMap<PageId, LinkedList<TransactionId>> waitingTxns = new HashMap<PageId, LinkedList<TransactionId>>();
-		
+		final Object key; // a PageId, a RecordId, or the Integer id of a table
+		final boolean table;
+		final boolean record;
+		final HashMap<TransactionId, LockMode> holders = new HashMap<TransactionId, LockMode>();
+		LinkedList<Request> waiters = new LinkedList<Request>(); // in the order they are granted
+		// holders that took their lock without the monitor
+		final ConcurrentHashMap<TransactionId, LockMode> fast = new ConcurrentHashMap<TransactionId, LockMode>();
+		// set while the entry has a holder or a queue fast holders may
+		// conflict with: they must take the monitor
+		volatile boolean slow = false;
+		// set once the entry is dropped from its stripe; it stays slow
+		boolean removed = false;
+
+		LockEntry(Object key) {
+			this.key = key;
+			this.table = key instanceof Integer;
+			this.record = key instanceof RecordId;
+		}
+
+		// the modes that may be taken fast; none of them conflict.  Records
+		// take none: there are too many of them to be worth it.
+		boolean fastEligible(LockMode mode) {
+			if (record) {
+				return false;
+			}
+			return table ? mode == LockMode.IS || mode == LockMode.IX : mode == LockMode.S;
+		}
+
+		int tableId() {
+			if (record) {
+				return ((RecordId) key).getPageId().getTableId();
+			}
+			return table ? (Integer) key : ((PageId) key).getTableId();
+		}
+	}
+
+	// a transaction waiting for a lock; granted is set by whoever hands it the
+	// lock, aborted by whoever picks its transaction to break a deadlock
+	static class Request {
+		final TransactionId tid;
+		final LockEntry entry;
+		final LockMode mode; // including what the transaction already holds
+		final boolean upgrade;
+		boolean granted = false;
+		boolean aborted = false;
+
+		Request(TransactionId tid, LockEntry entry, LockMode mode, boolean upgrade) {
+			this.tid = tid;
+			this.entry = entry;
+			this.mode = mode;
+			this.upgrade = upgrade;
+		}
+	}
+
+	// part of the table of entries, with its own monitor
+	private static class LockStripe {
+		final HashMap<Object, LockEntry> entries = new HashMap<Object, LockEntry>();
+	}
+
+	private final LockStripe[] stripes = new LockStripe[STRIPES];
+
+	// the locks a transaction holds and the requests it has queued
+	static class TxnLocks {
+		final Set<LockEntry> held = Collections.newSetFromMap(new ConcurrentHashMap<LockEntry, Boolean>());
+		final Set<LockEntry> fast = Collections.newSetFromMap(new ConcurrentHashMap<LockEntry, Boolean>());
+		final Set<Request> waiting = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+		// the mode held on each table, and how many of its pages and records
+		// are locked
+		final ConcurrentHashMap<Integer, LockMode> tables = new ConcurrentHashMap<Integer, LockMode>();
+		final ConcurrentHashMap<Integer, AtomicInteger> below = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+		void holdTable(int table, LockMode mode) {
+			tables.put(table, mode.join(tables.get(table)));
+		}
+
+		int lockCount(int table) {
+			AtomicInteger count = below.get(table);
+			return count == null ? 0 : count.get();
+		}
+
+		void countLock(int table, int delta) {
+			AtomicInteger count = below.get(table);
+			if (count == null) {
+				count = new AtomicInteger();
+				AtomicInteger raced = below.putIfAbsent(table, count);
+				if (raced != null) {
+					count = raced;
+				}
+			}
+			count.addAndGet(delta);
+		}
+	}
+
+	private final ConcurrentHashMap<TransactionId, TxnLocks> transactions = new ConcurrentHashMap<TransactionId, TxnLocks>();
+
+	// transactions wounded while they were running: their next request fails
+	private final Set<TransactionId> wounded = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+	private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+
+	private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+	public LockManager() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LockStripe();
+		}
+	}
+
+	public DeadlockPolicy getDeadlockPolicy() {
+		return policy;
+	}
+
+	public void setDeadlockPolicy(DeadlockPolicy policy) {
+		this.policy = policy;
+	}
+
+	public int getEscalationThreshold() {
+		return escalationThreshold;
+	}
+
+	/**
+	 * Sets how many page and record locks a transaction may hold on one
+	 * table before its next request locks the whole table instead.
+	 */
+	public void setEscalationThreshold(int threshold) {
+		this.escalationThreshold = threshold;
+	}
+
+	/**
+	 * @return the entries of the pages; the tables' and records' are left out
+	 */
 	public HashMap<PageId, LockEntry> getlockTable(){
-		return lockTable;
+		HashMap<PageId, LockEntry> table = new HashMap<PageId, LockEntry>();
+		for (LockStripe stripe : stripes) {
+			synchronized (stripe) {
+				for (LockEntry entry : stripe.entries.values()) {
+					if (entry.key instanceof PageId) {
+						table.put((PageId) entry.key, entry);
+					}
+				}
+			}
+		}
+		return table;
 	}
-	
+
+	/**
+	 * @return the transactions waiting for each page, in the order they will
+	 * get it
+	 */
 	public HashMap<PageId, LinkedList<TransactionId>> getWaitingTxns(){
-		return waitingTxns;
-	}
-	
-	public void getLock(TransactionId tid, PageId pid, Permissions mode) throws TransactionAbortedException{
-		
-		//System.out.println("Transaction " + tid + " wants a " +mode+ "lock on page " +pid);
-		if (holdsLock(tid, pid, mode)){
-			//System.out.println("held lock");
-			//System.out.println("Transaction " + tid + " hld a " +mode+ "lock on page " +pid);
-		} else {
-			
-			long tStart = System.currentTimeMillis();
-			boolean lockHeld = requestLock(tid, pid, mode);
-			while (!lockHeld){
-				if (System.currentTimeMillis() - tStart > 3000){
-					//System.out.println("Timed out!");
-					//System.out.println("Aborted: Transaction " + tid + " wanted a " +mode+ " lock on page " +pid);
-					throw new TransactionAbortedException();
-				}
-				lockHeld = requestLock(tid, pid, mode);
-			}
-			//System.out.println("Transaction " + tid + " got a " +mode+ "lock on page " +pid);
-		}	
-		
-	}
-
-	public synchronized boolean requestLock(TransactionId tid, PageId pid, Permissions mode){
-		
-		if (mode.equals(Permissions.READ_WRITE)){
-			
-			if (!waitingTxns.containsKey(pid)){
-				LinkedList<TransactionId> ll = new LinkedList<TransactionId>();
-				ll.add(0, tid);
-				waitingTxns.put(pid, ll);
-			} else {
-				if (!waitingTxns.get(pid).contains(tid)){
-					waitingTxns.get(pid).add(0, tid);
-				}
-			}
-            /** Above: insertion into waitingTxns. Below: insertion into lockTable, and deletion from waitingTxns  **/		
-
-			if (lockTable.containsKey(pid)){
-				if (lockTable.get(pid).tids.size() == 0){
-					// no competition
-					lockTable.get(pid).lockType = true;
-					lockTable.get(pid).tids.add(tid);
-					waitingTxns.get(pid).remove(tid);
-					return true;
-					
-				} else if (lockTable.get(pid).tids.size() == 1 && lockTable.get(pid).tids.get(0).equals(tid)){
-					// upgrade
-					lockTable.get(pid).lockType = true;
-					waitingTxns.get(pid).remove(tid);
-					return true;
-					
-				} else {
-					// not today kid
-					return false;
-				}
-	
-			} else {
-				// added at 1:08, didn't change anything. 
-				waitingTxns.get(pid).remove(tid);
-			
-				LockEntry entry = new LockEntry();
-				entry.lockType = true;
-				entry.tids.add(tid);
-				lockTable.put(pid, entry);
+		HashMap<PageId, LinkedList<TransactionId>> waiting = new HashMap<PageId, LinkedList<TransactionId>>();
+		for (Map.Entry<PageId, LockEntry> e : getlockTable().entrySet()) {
+			LockEntry entry = e.getValue();
+			synchronized (entry) {
+				if (!entry.waiters.isEmpty()) {
+					LinkedList<TransactionId> tids = new LinkedList<TransactionId>();
+					for (Request r : entry.waiters) {
+						tids.add(r.tid);
+					}
+					waiting.put(e.getKey(), tids);
+				}
+			}
+		}
+		return waiting;
+	}
+
+	private TxnLocks locks(TransactionId tid) {
+		TxnLocks locks = transactions.get(tid);
+		if (locks == null) {
+			locks = new TxnLocks();
+			TxnLocks raced = transactions.putIfAbsent(tid, locks);
+			if (raced != null) {
+				locks = raced;
+			}
+		}
+		return locks;
+	}
+
+	private LockStripe stripe(Object key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private LockEntry entry(Object key) {
+		LockStripe stripe = stripe(key);
+		synchronized (stripe) {
+			LockEntry entry = stripe.entries.get(key);
+			if (entry == null) {
+				entry = new LockEntry(key);
+				stripe.entries.put(key, entry);
+			}
+			return entry;
+		}
+	}
+
+	private LockEntry findEntry(Object key) {
+		LockStripe stripe = stripe(key);
+		synchronized (stripe) {
+			return stripe.entries.get(key);
+		}
+	}
+
+	private static LockMode mode(Permissions perm) {
+		return perm.equals(Permissions.READ_WRITE) ? LockMode.X : LockMode.S;
+	}
+
+	/**
+	 * Takes a lock without the entry's monitor, if the mode allows it and
+	 * the entry is fast.
+	 *
+	 * @return true if the transaction holds the lock
+	 */
+	private boolean readFast(LockEntry entry, TransactionId tid, LockMode mode) {
+		if (!entry.fastEligible(mode) || entry.slow) {
+			return false;
+		}
+		LockMode held = entry.fast.putIfAbsent(tid, mode);
+		if (held != null) {
+			// a weaker one is moved to the holders the slow way
+			return held.covers(mode);
+		}
+		if (entry.slow) {
+			// a conflicting request came in meanwhile: back out, and make
+			// sure it sees that
+			entry.fast.remove(tid);
+			synchronized (entry) {
+				grantWaiters(entry);
+			}
+			return false;
+		}
+		TxnLocks locks = locks(tid);
+		if (locks.fast.add(entry) && !entry.table && !locks.held.contains(entry)) {
+			locks.countLock(entry.tableId(), 1);
+		}
+		if (entry.table) {
+			locks.holdTable(entry.tableId(), mode);
+		}
+		return true;
+	}
+
+	// gives up a lock taken by readFast; a request may be waiting for it
+	private boolean releaseFast(LockEntry entry, TransactionId tid) {
+		if (entry.fast.remove(tid) == null) {
+			return false;
+		}
+		if (entry.slow) {
+			synchronized (entry) {
+				grantWaiters(entry);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Acquires a lock on a page, and the intention lock on its table before
+	 * it, waiting in line for them if they cannot be granted now.  A page of
+	 * a table the transaction holds in a covering mode needs no lock of its
+	 * own, and past the escalation threshold the whole table is locked
+	 * instead of the page.
+	 *
+	 * @throws TransactionAbortedException if the deadlock policy aborts the
+	 * transaction, or the thread is interrupted while it waits, or an upgrade
+	 * of the lock would deadlock with one already waiting
+	 */
+	public void getLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException{
+		LockMode mode = mode(perm);
+		if (!lockTable(tid, pid.getTableId(), mode)) {
+			lock(tid, entry(pid), mode);
+		}
+	}
+
+	/**
+	 * Acquires the intention lock on a page (IS to read, IX to write), for a
+	 * transaction that is going to lock some of its records.
+	 *
+	 * @see #getLock
+	 */
+	public void getIntentionLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+		LockMode mode = mode(perm);
+		if (!lockTable(tid, pid.getTableId(), mode)) {
+			lockIntention(tid, entry(pid), mode);
+		}
+	}
+
+	/**
+	 * Acquires a lock on a record, and the intention locks on its table and
+	 * its page before it.  A record of a table or page the transaction holds
+	 * in a covering mode needs no lock of its own.
+	 *
+	 * @see #getLock
+	 */
+	public void getRecordLock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+		LockMode mode = mode(perm);
+		if (lockTable(tid, rid.getPageId().getTableId(), mode)) {
+			return;
+		}
+		if (lockIntention(tid, entry(rid.getPageId()), mode)) {
+			return;
+		}
+		lock(tid, entry(rid), mode);
+	}
+
+	/**
+	 * Takes the intention lock on a table before a lock below it, or past
+	 * the escalation threshold the lock on the whole table.
+	 *
+	 * @return true if the transaction's lock on the table covers the one it
+	 * asked for below it
+	 */
+	private boolean lockTable(TransactionId tid, int table, LockMode mode) throws TransactionAbortedException {
+		if (wounded.contains(tid)) {
+			throw new TransactionAbortedException();
+		}
+		TxnLocks locks = locks(tid);
+		LockMode tableMode = locks.tables.get(table);
+		if (tableMode != null && tableMode.covers(mode)) {
+			return true;
+		}
+		LockEntry tableEntry = entry(table);
+		if (tableMode == null || !tableMode.covers(mode.intention())) {
+			lock(tid, tableEntry, mode.intention());
+		}
+		if (locks.lockCount(table) >= escalationThreshold) {
+			lock(tid, tableEntry, mode);
+			releaseCovered(tid, table);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the intention lock on a page before a lock on one of its
+	 * records.
+	 *
+	 * @return true if the transaction's lock on the page covers the one it
+	 * asked for on the record
+	 */
+	private boolean lockIntention(TransactionId tid, LockEntry page, LockMode mode) throws TransactionAbortedException {
+		LockMode held;
+		synchronized (page) {
+			held = heldMode(page, tid);
+		}
+		if (held != null && held.covers(mode)) {
+			return true;
+		}
+		if (held == null || !held.covers(mode.intention())) {
+			lock(tid, page, mode.intention());
+		}
+		return false;
+	}
+
+	// acquires a lock on one entry, waiting for it if it has to
+	private void lock(TransactionId tid, LockEntry entry, LockMode mode) throws TransactionAbortedException {
+		if (readFast(entry, tid, mode)) {
+			return;
+		}
+		Request request;
+		while (true) {
+			synchronized (entry) {
+				if (!entry.removed) {
+					if (holds(entry, tid, mode)) {
+						return;
+					}
+					request = enqueue(entry, tid, mode);
+					if (request == null) {
+						throw new TransactionAbortedException();
+					}
+					if (request.granted) {
+						return;
+					}
+					break;
+				}
+			}
+			// the entry was dropped meanwhile: its key has a new one
+			entry = entry(entry.key);
+		}
+
+		try {
+			resolveDeadlock(request);
+			while (true) {
+				synchronized (entry) {
+					if (request.granted || request.aborted) {
+						break;
+					}
+					entry.wait(DETECT_INTERVAL_MS);
+					if (request.granted || request.aborted) {
+						break;
+					}
+				}
+				resolveDeadlock(request);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (entry) {
+				if (!request.granted) {
+					// give up our place; whoever was behind us may go now
+					withdraw(request);
+					grantWaiters(entry);
+				}
+			}
+			if (!request.granted) {
+				forget(entry);
+			}
+		}
+		if (!request.granted) {
+			throw new TransactionAbortedException();
+		}
+	}
+
+	/**
+	 * Drops an entry from its stripe if nobody holds or waits for it.  An
+	 * entry with fast holders is marked slow before they are looked at, as
+	 * for a conflicting request (see the class comment), and a dropped entry
+	 * stays slow, so a request that still has it goes the slow way and finds
+	 * it dropped.  Must not hold the entry's monitor.
+	 */
+	private void forget(LockEntry entry) {
+		if (!entry.fast.isEmpty()) {
+			// the last fast holder to leave drops it
+			return;
+		}
+		LockStripe stripe = stripe(entry.key);
+		synchronized (stripe) {
+			synchronized (entry) {
+				if (entry.removed || !entry.holders.isEmpty() || !entry.waiters.isEmpty()) {
+					return;
+				}
+				entry.slow = true;
+				if (!entry.fast.isEmpty()) {
+					// a fast holder came in meanwhile: leave it fast
+					grantWaiters(entry);
+					return;
+				}
+				entry.removed = true;
+				stripe.entries.remove(entry.key);
+			}
+		}
+	}
+
+	/**
+	 * Gives up the transaction's page and record locks on a table that its
+	 * lock on the whole table now covers, apart from the intention locks on
+	 * pages with record locks it does not cover.
+	 */
+	private void releaseCovered(TransactionId tid, int table) {
+		TxnLocks locks = transactions.get(tid);
+		if (locks == null) {
+			return;
+		}
+		LockMode tableMode = locks.tables.get(table);
+		// pages whose intention locks still guard record locks
+		Set<Object> guarding = new HashSet<Object>();
+		for (LockEntry entry : locks.held) {
+			if (!entry.record || entry.tableId() != table) {
+				continue;
+			}
+			synchronized (entry) {
+				LockMode mode = entry.holders.get(tid);
+				if (mode != null && !tableMode.covers(mode)) {
+					guarding.add(((RecordId) entry.key).getPageId());
+				}
+			}
+		}
+		for (LockEntry entry : locks.fast) {
+			LockMode mode = entry.fast.get(tid);
+			if (!entry.table && entry.tableId() == table && mode != null && tableMode.covers(mode)) {
+				releaseFast(entry, tid);
+				locks.fast.remove(entry);
+				if (!locks.held.contains(entry)) {
+					locks.countLock(table, -1);
+				}
+				forget(entry);
+			}
+		}
+		for (LockEntry entry : locks.held) {
+			if (entry.table || entry.tableId() != table || guarding.contains(entry.key)) {
+				continue;
+			}
+			boolean released = false;
+			synchronized (entry) {
+				LockMode mode = entry.holders.get(tid);
+				if (mode != null && tableMode.covers(mode)) {
+					entry.holders.remove(tid);
+					locks.held.remove(entry);
+					locks.countLock(table, -1);
+					grantWaiters(entry);
+					released = true;
+				}
+			}
+			if (released) {
+				forget(entry);
+			}
+		}
+	}
+
+	// takes a request that was not granted out of its queue and the index;
+	// must hold the entry's monitor
+	private void withdraw(Request request) {
+		request.entry.waiters.remove(request);
+		TxnLocks locks = transactions.get(request.tid);
+		if (locks != null) {
+			locks.waiting.remove(request);
+		}
+	}
+
+	/**
+	 * Applies the deadlock policy to a request that has to wait.
+	 */
+	private synchronized void resolveDeadlock(Request request) {
+		switch (policy) {
+			case NO_WAIT:
+				abortWaiting(request.tid);
+				break;
+			case WAIT_DIE:
+				for (TransactionId blocker : blockers(request)) {
+					if (blocker.getId() < request.tid.getId()) {
+						abortWaiting(request.tid);
+						break;
+					}
+				}
+				break;
+			case WOUND_WAIT:
+				for (TransactionId blocker : blockers(request)) {
+					if (blocker.getId() > request.tid.getId()) {
+						wounded.add(blocker);
+						abortWaiting(blocker);
+					}
+				}
+				break;
+			default:
+				detectDeadlock(request);
+		}
+	}
+
+	// wakes the transaction's waiting requests to give up; must hold the
+	// LockManager's monitor
+	private void abortWaiting(TransactionId tid) {
+		TxnLocks locks = transactions.get(tid);
+		if (locks == null) {
+			return;
+		}
+		for (Request r : locks.waiting) {
+			synchronized (r.entry) {
+				if (!r.granted) {
+					r.aborted = true;
+					r.entry.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Searches the waits-for graph for cycles through the request's
+	 * transaction, and aborts the youngest transaction on each.  Must hold
+	 * the LockManager's monitor.
+	 */
+	private void detectDeadlock(Request request) {
+		while (true) {
+			LinkedList<TransactionId> cycle = new LinkedList<TransactionId>();
+			cycle.add(request.tid);
+			if (!findCycle(request.tid, cycle, new HashSet<TransactionId>())) {
+				return;
+			}
+			TransactionId victim = cycle.getFirst();
+			for (TransactionId tid : cycle) {
+				if (tid.getId() > victim.getId()) {
+					victim = tid;
+				}
+			}
+			abortWaiting(victim);
+			if (victim.equals(request.tid)) {
+				return;
+			}
+			// the request may have closed more than one cycle
+		}
+	}
+
+	// depth first from the last transaction on the path, back to the first;
+	// must hold the LockManager's monitor
+	private boolean findCycle(TransactionId from, LinkedList<TransactionId> path, Set<TransactionId> visited) {
+		visited.add(from);
+		for (TransactionId next : waitsFor(from)) {
+			if (next.equals(path.getFirst())) {
 				return true;
 			}
-		} else {
-			// acquiring read only lock
-						
-			if (!waitingTxns.containsKey(pid)){
-				LinkedList<TransactionId> ll = new LinkedList<TransactionId>();
-				ll.add(tid);
-				waitingTxns.put(pid, ll);
-			} else {
-				if (!waitingTxns.get(pid).contains(tid)){
-					waitingTxns.get(pid).add(tid);
-				}
-			}
-			
-			if (lockTable.containsKey(pid)){			
-				// someone (who isn't us) has an exclusive lock!
-				if (lockTable.get(pid).lockType == true && !lockTable.get(pid).tids.get(0).equals(tid)){
-					return false;
-				} else {
-					
-					lockTable.get(pid).tids.add(tid);
-					lockTable.get(pid).lockType = false;
-					waitingTxns.get(pid).remove(tid);
+			if (!visited.contains(next)) {
+				path.add(next);
+				if (findCycle(next, path, visited)) {
 					return true;
 				}
-				
-			} else {
-				LockEntry entry = new LockEntry();
-				entry.lockType = false;
-				entry.tids.add(tid);
-				lockTable.put(pid, entry);
-				return true;
+				path.removeLast();
 			}
 		}
+		return false;
+	}
+
+	// the transactions a transaction waits for; must hold the LockManager's monitor
+	private Set<TransactionId> waitsFor(TransactionId tid) {
+		Set<TransactionId> blockers = new HashSet<TransactionId>();
+		TxnLocks locks = transactions.get(tid);
+		if (locks == null) {
+			return blockers;
+		}
+		for (Request r : locks.waiting) {
+			blockers.addAll(blockers(r));
+		}
+		return blockers;
 	}
-	
-	public synchronized void releaseLock(PageId pid, TransactionId tid){
-		//System.out.println("ReleaseLock called");
-		if (lockTable.containsKey(pid)){
-			lockTable.get(pid).tids.remove(tid);
-			lockTable.get(pid).lockType = false;
-			
+
+	// the transactions a waiting request waits for
+	private Set<TransactionId> blockers(Request r) {
+		Set<TransactionId> blockers = new HashSet<TransactionId>();
+		synchronized (r.entry) {
+			if (r.granted || r.aborted) {
+				return blockers;
+			}
+			for (Map.Entry<TransactionId, LockMode> h : r.entry.holders.entrySet()) {
+				if (!r.mode.compatibleWith(h.getValue())) {
+					blockers.add(h.getKey());
+				}
+			}
+			for (Map.Entry<TransactionId, LockMode> h : r.entry.fast.entrySet()) {
+				if (!r.mode.compatibleWith(h.getValue())) {
+					blockers.add(h.getKey());
+				}
+			}
+			// even a compatible request ahead holds it up, for as long as it
+			// waits itself
+			for (Request ahead : r.entry.waiters) {
+				if (ahead == r) {
+					break;
+				}
+				blockers.add(ahead.tid);
+			}
+		}
+		blockers.remove(r.tid);
+		return blockers;
+	}
+
+	/**
+	 * Queues a request, granting it at once if nobody is waiting ahead of it
+	 * and the lock allows it.  Must hold the entry's monitor.
+	 *
+	 * @return the request, or null for an upgrade that would deadlock with
+	 * one already waiting
+	 */
+	private Request enqueue(LockEntry entry, TransactionId tid, LockMode mode) {
+		// before looking at the fast holders; see the class comment
+		entry.slow = true;
+		LockMode fastMode = entry.fast.remove(tid);
+		if (fastMode != null) {
+			// an upgrade of a lock taken fast: hold it the slow way
+			TxnLocks locks = locks(tid);
+			locks.fast.remove(entry);
+			locks.held.add(entry);
+			entry.holders.put(tid, fastMode.join(entry.holders.get(tid)));
+		}
+		LockMode held = entry.holders.get(tid);
+		Request request = new Request(tid, entry, mode.join(held), held != null);
+		if (request.upgrade) {
+			// first in line, behind the other upgrades: the holders ahead of
+			// it cannot leave until it is granted or gives up
+			int i = 0;
+			for (Request r : entry.waiters) {
+				if (!r.upgrade) {
+					break;
+				}
+				if (!r.mode.compatibleWith(held)) {
+					// that one waits for us to let go of what we hold
+					grantWaiters(entry);
+					return null;
+				}
+				i++;
+			}
+			entry.waiters.add(i, request);
 		} else {
-			//System.out.println("No threads held this lock");
+			entry.waiters.add(request);
 		}
+		locks(tid).waiting.add(request);
+		grantWaiters(entry);
+		return request;
 	}
-	
-	public void releaseLocksAndRequests(TransactionId tid){
-				
-		for (PageId p : lockTable.keySet()){
-			if (lockTable.get(p).tids.contains(tid)){
-				releaseLock(p, tid);
+
+	/**
+	 * Grants the requests at the head of the entry's queue that the lock now
+	 * allows, in order, and wakes their transactions.  Must hold the entry's
+	 * monitor.
+	 */
+	private void grantWaiters(LockEntry entry) {
+		boolean granted = false;
+		while (!entry.waiters.isEmpty() && compatible(entry, entry.waiters.getFirst())) {
+			Request request = entry.waiters.removeFirst();
+			entry.holders.put(request.tid, request.mode);
+			TxnLocks locks = locks(request.tid);
+			locks.waiting.remove(request);
+			if (locks.held.add(entry) && !entry.table && !locks.fast.contains(entry)) {
+				locks.countLock(entry.tableId(), 1);
 			}
-		} // seems right
-		
-		for (PageId p : waitingTxns.keySet()){
+			if (entry.table) {
+				locks.holdTable(entry.tableId(), request.mode);
+			}
+			request.granted = true;
+			granted = true;
+		}
+		if (granted) {
+			entry.notifyAll();
+		}
+		boolean slow = entry.removed || !entry.waiters.isEmpty();
+		for (LockMode mode : entry.holders.values()) {
+			if (!entry.fastEligible(mode)) {
+				slow = true;
+				break;
+			}
+		}
+		entry.slow = slow;
+	}
 
-			while(waitingTxns.get(p).contains(tid)){
-				waitingTxns.get(p).remove(tid);
+	// whether the request goes with every other holder of the entry
+	private boolean compatible(LockEntry entry, Request request) {
+		for (Map.Entry<TransactionId, LockMode> h : entry.holders.entrySet()) {
+			if (!h.getKey().equals(request.tid) && !request.mode.compatibleWith(h.getValue())) {
+				return false;
+			}
+		}
+		for (Map.Entry<TransactionId, LockMode> h : entry.fast.entrySet()) {
+			if (!h.getKey().equals(request.tid) && !request.mode.compatibleWith(h.getValue())) {
+				return false;
 			}
 		}
+		return true;
 	}
-	
-	public synchronized boolean holdsLock(TransactionId tid, PageId pid, Permissions perm){
-		
-		if (perm.equals(Permissions.READ_WRITE)){
-			if (lockTable.containsKey(pid)){
-				if (lockTable.get(pid).tids.size() == 1){
-					if (lockTable.get(pid).tids.get(0).equals(tid)){
+
+	/**
+	 * Tries to acquire a lock on a page, and the intention lock on its
+	 * table, without waiting.  Does not escalate.
+	 *
+	 * @return true if the transaction holds the lock
+	 */
+	public boolean requestLock(TransactionId tid, PageId pid, Permissions perm){
+		LockMode mode = mode(perm);
+		int table = pid.getTableId();
+		LockMode tableMode = locks(tid).tables.get(table);
+		if (tableMode != null && tableMode.covers(mode)) {
+			return true;
+		}
+		if ((tableMode == null || !tableMode.covers(mode.intention()))
+				&& !tryLock(tid, entry(table), mode.intention())) {
+			return false;
+		}
+		return tryLock(tid, entry(pid), mode);
+	}
+
+	/**
+	 * Tries to acquire a lock on a record, and the intention locks on its
+	 * table and its page, without waiting.  Does not escalate.
+	 *
+	 * @return true if the transaction holds the lock
+	 */
+	public boolean requestRecordLock(TransactionId tid, RecordId rid, Permissions perm) {
+		LockMode mode = mode(perm);
+		PageId pid = rid.getPageId();
+		int table = pid.getTableId();
+		LockMode tableMode = locks(tid).tables.get(table);
+		if (tableMode != null && tableMode.covers(mode)) {
+			return true;
+		}
+		if ((tableMode == null || !tableMode.covers(mode.intention()))
+				&& !tryLock(tid, entry(table), mode.intention())) {
+			return false;
+		}
+		LockEntry page = entry(pid);
+		LockMode pageMode;
+		synchronized (page) {
+			pageMode = heldMode(page, tid);
+		}
+		if (pageMode != null && pageMode.covers(mode)) {
+			return true;
+		}
+		if ((pageMode == null || !pageMode.covers(mode.intention()))
+				&& !tryLock(tid, page, mode.intention())) {
+			return false;
+		}
+		return tryLock(tid, entry(rid), mode);
+	}
+
+	private boolean tryLock(TransactionId tid, LockEntry entry, LockMode mode) {
+		if (readFast(entry, tid, mode)) {
+			return true;
+		}
+		Request request;
+		while (true) {
+			synchronized (entry) {
+				if (!entry.removed) {
+					if (holds(entry, tid, mode)) {
 						return true;
 					}
+					request = enqueue(entry, tid, mode);
+					if (request != null && !request.granted) {
+						withdraw(request);
+						grantWaiters(entry);
+					}
+					break;
 				}
 			}
-		} else {
-			if (lockTable.containsKey(pid)){
-				if (lockTable.get(pid).tids.contains(tid)){
-					return true;
+			entry = entry(entry.key);
+		}
+		if (request == null || !request.granted) {
+			forget(entry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the transaction's lock on a page.  A lock on the whole table
+	 * is kept, and so is the intention lock on it.
+	 */
+	public void releaseLock(PageId pid, TransactionId tid){
+		LockEntry entry = findEntry(pid);
+		if (entry == null) {
+			return;
+		}
+		boolean released = releaseFast(entry, tid);
+		synchronized (entry) {
+			if (entry.holders.remove(tid) != null) {
+				released = true;
+				grantWaiters(entry);
+			}
+		}
+		TxnLocks locks = transactions.get(tid);
+		if (released && locks != null) {
+			locks.fast.remove(entry);
+			locks.held.remove(entry);
+			locks.countLock(pid.getTableId(), -1);
+		}
+		if (released) {
+			forget(entry);
+		}
+	}
+
+	/**
+	 * Releases every lock the transaction holds and withdraws any request it
+	 * still has queued.  Only the transaction's own entries are visited.
+	 */
+	public void releaseLocksAndRequests(TransactionId tid){
+		wounded.remove(tid);
+		TxnLocks locks = transactions.remove(tid);
+		if (locks == null) {
+			return;
+		}
+		// first the requests, so that none of them is granted afterwards
+		for (Request r : locks.waiting) {
+			synchronized (r.entry) {
+				if (!r.granted) {
+					// wake its thread, if it is still waiting, to give up
+					r.aborted = true;
+					r.entry.waiters.remove(r);
+					r.entry.notifyAll();
+					grantWaiters(r.entry);
 				}
 			}
+			forget(r.entry);
 		}
-		return false;
+		for (LockEntry entry : locks.fast) {
+			releaseFast(entry, tid);
+			forget(entry);
+		}
+		for (LockEntry entry : locks.held) {
+			synchronized (entry) {
+				if (entry.holders.remove(tid) != null) {
+					grantWaiters(entry);
+				}
+			}
+			forget(entry);
+		}
+	}
+
+	/**
+	 * @return true if the transaction holds the page in the given mode, or
+	 * the whole table in one that covers it
+	 */
+	public boolean holdsLock(TransactionId tid, PageId pid, Permissions perm){
+		LockMode mode = mode(perm);
+		if (holdsTable(tid, pid.getTableId(), mode)) {
+			return true;
+		}
+		return holdsEntry(tid, pid, mode);
+	}
+
+	/**
+	 * @return true if the transaction holds the record in the given mode, or
+	 * its table or its page in one that covers it
+	 */
+	public boolean holdsRecordLock(TransactionId tid, RecordId rid, Permissions perm) {
+		LockMode mode = mode(perm);
+		if (holdsTable(tid, rid.getPageId().getTableId(), mode)) {
+			return true;
+		}
+		return holdsEntry(tid, rid.getPageId(), mode) || holdsEntry(tid, rid, mode);
+	}
+
+	private boolean holdsTable(TransactionId tid, int table, LockMode mode) {
+		TxnLocks locks = transactions.get(tid);
+		if (locks == null) {
+			return false;
+		}
+		LockMode tableMode = locks.tables.get(table);
+		return tableMode != null && tableMode.covers(mode);
+	}
+
+	private boolean holdsEntry(TransactionId tid, Object key, LockMode mode) {
+		LockEntry entry = findEntry(key);
+		if (entry == null) {
+			return false;
+		}
+		synchronized (entry) {
+			return holds(entry, tid, mode);
+		}
+	}
+
+	// must hold the entry's monitor
+	private boolean holds(LockEntry entry, TransactionId tid, LockMode mode) {
+		LockMode held = heldMode(entry, tid);
+		return held != null && held.covers(mode);
+	}
+
+	// the mode the transaction holds the entry in, or null; must hold the
+	// entry's monitor
+	private LockMode heldMode(LockEntry entry, TransactionId tid) {
+		LockMode held = entry.holders.get(tid);
+		LockMode fastMode = entry.fast.get(tid);
+		return held == null ? fastMode : held.join(fastMode);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the deadlock policies of the LockManager under contention.
+ * Threads, all started at once as Lab5Util.runTransactions does, each run
+ * short transactions that lock a few random pages of a small table, some
+ * shared and some exclusive, pausing after each lock.  An aborted transaction
+ * releases its locks and starts over with the same TransactionId.  Reports
+ * committed transactions per second and aborts per commit.
+ * <p/>
+ * Usage: java simpledb.LockPolicyBenchmark [threads] [pages] [locksPerTransaction] [seconds]
+ */
+public class LockPolicyBenchmark {
+
+    private static final double WRITE_FRACTION = 0.5;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int locks = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.println(threads + " threads, " + pages + " pages, " + locks
+                + " locks per transaction, " + seconds + "s per policy");
+        System.out.println(String.format("%-10s %12s %14s", "policy", "commits/s", "aborts/commit"));
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            run(policy, threads, pages, locks, seconds);
+        }
+    }
+
+    private static void run(LockManager.DeadlockPolicy policy, int threads, final int pages, final int locks,
+                            int seconds) throws InterruptedException {
+        final LockManager lm = new LockManager();
+        lm.setDeadlockPolicy(policy);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            workers.add(new Thread() {
+                public void run() {
+                    while (!stop.get()) {
+                        TransactionId tid = new TransactionId();
+                        while (true) {
+                            try {
+                                for (int j = 0; j < locks; j++) {
+                                    PageId pid = new HeapPageId(0, rand.nextInt(pages));
+                                    lm.getLock(tid, pid, rand.nextDouble() < WRITE_FRACTION
+                                            ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                                    Thread.sleep(1);
+                                }
+                                lm.releaseLocksAndRequests(tid);
+                                commits.incrementAndGet();
+                                break;
+                            } catch (TransactionAbortedException e) {
+                                lm.releaseLocksAndRequests(tid);
+                                aborts.incrementAndGet();
+                                if (stop.get()) {
+                                    break;
+                                }
+                            } catch (InterruptedException e) {
+                                lm.releaseLocksAndRequests(tid);
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.println(String.format("%-10s %12.1f %14.3f", policy, commits.get() / elapsed,
+                commits.get() == 0 ? 0.0 : (double) aborts.get() / commits.get()));
+    }
+}
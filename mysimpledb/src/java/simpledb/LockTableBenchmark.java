@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many lock requests the LockManager serves per second on a
+ * read-mostly workload, for a growing number of threads.  Each transaction
+ * locks a few random pages, nearly all of them shared, and then releases
+ * them, with no pause in between.  On a read-mostly workload the throughput
+ * should grow with the number of threads, up to the number of cores.
+ * <p/>
+ * Usage: java simpledb.LockTableBenchmark [maxThreads] [pages] [writePercent] [seconds]
+ */
+public class LockTableBenchmark {
+
+    private static final int LOCKS_PER_TRANSACTION = 8;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int writePercent = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        System.out.println(pages + " pages, " + writePercent + "% exclusive, " + seconds + "s per run");
+        System.out.println(String.format("%-8s %14s", "threads", "locks/s"));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, pages, writePercent, seconds);
+        }
+    }
+
+    private static void run(int threads, final int pages, final int writePercent, int seconds)
+            throws InterruptedException {
+        final LockManager lm = new LockManager();
+        final AtomicLong granted = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            workers.add(new Thread() {
+                public void run() {
+                    long count = 0;
+                    while (!stop.get()) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int j = 0; j < LOCKS_PER_TRANSACTION; j++) {
+                                PageId pid = new HeapPageId(0, rand.nextInt(pages));
+                                lm.getLock(tid, pid, rand.nextInt(100) < writePercent
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                                count++;
+                            }
+                        } catch (TransactionAbortedException e) {
+                            // counted up to where it was aborted
+                        }
+                        lm.releaseLocksAndRequests(tid);
+                    }
+                    granted.addAndGet(count);
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+        System.out.println(String.format("%-8d %14.0f", threads, granted.get() / elapsed));
+    }
+}
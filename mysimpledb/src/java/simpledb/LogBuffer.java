@@ -0,0 +1,332 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The in-memory tail of the log.  Records are appended to a ring buffer and
+ * written to the log file by a dedicated writer thread, in large sequential
+ * writes, instead of by the appending threads themselves.
+ * <p/>
+ * Every record gets a log sequence number (LSN): the offset in the log file
+ * where it starts.  Appending does not take a lock.  An appender reserves
+ * room for its record by advancing the end of the log with a
+ * compare-and-set, copies the record into its slice of the ring, and then
+ * publishes it.  Records are published in LSN order, so the writer never
+ * sees a gap; an appender whose predecessor is still copying waits for it.
+ * <p/>
+ * {@link #force(long)} waits until a record is on disk.  Forcing uses group
+ * commit: one thread at a time forces the file, on behalf of every thread
+ * that is waiting for its records to be durable.
+ *
+ * @see LogFile
+ */
+public class LogBuffer {
+
+    /**
+     * Default size of the ring buffer, in bytes.
+     */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * Longest time the writer sleeps before writing out what is published.
+     */
+    static final long WRITER_INTERVAL_MS = 10;
+
+    /**
+     * Where the records are written: the log's segments, or a single file.
+     */
+    public interface Sink {
+        /**
+         * Writes the bytes remaining in src at the specified offset.
+         *
+         * @return the number of bytes written
+         */
+        int write(ByteBuffer src, long position) throws IOException;
+
+        /**
+         * Forces what was written to disk.
+         */
+        void force() throws IOException;
+    }
+
+    private final Sink sink;
+    private final byte[] ring;
+
+    private final AtomicLong reserved;      // end of the last reserved record
+    private volatile long published;        // end of the last copied-in record
+    private volatile long written;          // end of the data written to the file
+    private volatile boolean closed;
+
+    // group commit
+    private final Object forceLock = new Object();
+    private boolean forcing;        // a leader is forcing the file
+    private long forcedThrough;     // file offset known to be on disk
+    private long forceCount;
+
+    private final Thread writer;
+    private IOException writeFailure;
+
+    /**
+     * Creates a buffer that appends to the specified file, starting at the
+     * specified offset.
+     *
+     * @param channel  the log file
+     * @param start    the LSN of the first record; everything before it must
+     *                 already be in the file
+     * @param capacity the size of the ring buffer, in bytes
+     */
+    public LogBuffer(final FileChannel channel, long start, int capacity) {
+        this(new Sink() {
+            public int write(ByteBuffer src, long position) throws IOException {
+                return channel.write(src, position);
+            }
+
+            public void force() throws IOException {
+                channel.force(true);
+            }
+        }, start, capacity);
+    }
+
+    /**
+     * Creates a buffer that appends to the specified sink, starting at the
+     * specified offset.
+     *
+     * @param sink     where the records are written
+     * @param start    the LSN of the first record; everything before it must
+     *                 already be written
+     * @param capacity the size of the ring buffer, in bytes
+     */
+    public LogBuffer(Sink sink, long start, int capacity) {
+        this.sink = sink;
+        this.ring = new byte[capacity];
+        this.reserved = new AtomicLong(start);
+        this.published = start;
+        this.written = start;
+        this.forcedThrough = start;
+
+        writer = new Thread("LogBuffer-writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record, followed by its own LSN (so that the log can be read
+     * backwards).
+     *
+     * @param record the record, without the trailing LSN
+     * @return the LSN of the record
+     */
+    public long append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("the log buffer is closed");
+        }
+        int length = record.length + LogFile.LONG_SIZE;
+        if (length > ring.length) {
+            throw new IOException("log record of " + length + " bytes does not fit in a "
+                    + ring.length + " byte log buffer");
+        }
+
+        long lsn;
+        while (true) {
+            lsn = reserved.get();
+            if (lsn + length - written > ring.length) {
+                waitForRoom(lsn + length);
+                continue;
+            }
+            if (reserved.compareAndSet(lsn, lsn + length)) {
+                break;
+            }
+        }
+
+        copy(lsn, record, record.length);
+        byte[] trailer = new byte[LogFile.LONG_SIZE];
+        ByteBuffer.wrap(trailer).putLong(lsn);
+        copy(lsn + record.length, trailer, trailer.length);
+
+        // publish in LSN order
+        while (published != lsn) {
+            Thread.yield();
+        }
+        published = lsn + length;
+        if (published - written > ring.length / 2) {
+            LockSupport.unpark(writer);
+        }
+        return lsn;
+    }
+
+    /**
+     * @return the LSN the next record will get
+     */
+    public long end() {
+        return reserved.get();
+    }
+
+    /**
+     * Waits until everything appended so far is in the file (but not
+     * necessarily on disk).
+     */
+    public void flush() throws IOException {
+        waitForWrite(reserved.get());
+    }
+
+    /**
+     * Waits until the record with the specified LSN, and every record before
+     * it, is on disk.
+     */
+    public void force(long lsn) throws IOException {
+        forceThrough(lsn + 1);
+    }
+
+    /**
+     * Waits until everything appended so far is on disk.
+     */
+    public void force() throws IOException {
+        forceThrough(reserved.get());
+    }
+
+    /**
+     * @return the number of times the log file has been forced to disk
+     */
+    public long getForceCount() {
+        synchronized (forceLock) {
+            return forceCount;
+        }
+    }
+
+    /**
+     * Writes out everything appended so far and stops the writer thread.
+     */
+    public void close() throws IOException {
+        flush();
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while closing the log buffer");
+        }
+    }
+
+    /**
+     * The first thread to find that nobody is forcing the file becomes the
+     * leader: it forces everything written so far and wakes the others,
+     * whose records are then usually durable already.  Threads that arrive
+     * while a force is in progress wait for it and are all covered by the
+     * next one.
+     */
+    private void forceThrough(long offset) throws IOException {
+        waitForWrite(offset);
+        synchronized (forceLock) {
+            while (forcedThrough < offset && forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while forcing the log");
+                }
+            }
+            if (forcedThrough >= offset) {
+                return;
+            }
+            forcing = true;
+        }
+
+        long end = written;
+        boolean forced = false;
+        try {
+            sink.force();
+            forced = true;
+        } finally {
+            synchronized (forceLock) {
+                forcing = false;
+                if (forced) {
+                    forcedThrough = Math.max(forcedThrough, end);
+                    forceCount++;
+                }
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    private void copy(long lsn, byte[] bytes, int length) {
+        int offset = (int) (lsn % ring.length);
+        int first = Math.min(length, ring.length - offset);
+        System.arraycopy(bytes, 0, ring, offset, first);
+        System.arraycopy(bytes, first, ring, 0, length - first);
+    }
+
+    private void waitForRoom(long end) throws IOException {
+        waitForWrite(end - ring.length);
+    }
+
+    private synchronized void waitForWrite(long offset) throws IOException {
+        while (written < offset) {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            if (closed) {
+                throw new IOException("the log buffer is closed");
+            }
+            LockSupport.unpark(writer);
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while writing the log");
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long from = written;
+            long to = published;
+            if (from == to) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(WRITER_INTERVAL_MS));
+                continue;
+            }
+
+            try {
+                write(from, to);
+            } catch (IOException e) {
+                synchronized (this) {
+                    writeFailure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                written = to;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the records between the two LSNs to the file, in at most two
+     * writes (the range may wrap around the end of the ring).
+     */
+    private void write(long from, long to) throws IOException {
+        while (from < to) {
+            int offset = (int) (from % ring.length);
+            int length = (int) Math.min(to - from, ring.length - offset);
+            ByteBuffer chunk = ByteBuffer.wrap(ring, offset, length);
+            long position = from;
+            while (chunk.hasRemaining()) {
+                position += sink.write(chunk, position);
+            }
+            from += length;
+        }
+    }
+}
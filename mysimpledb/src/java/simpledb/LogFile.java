@@ -2,7 +2,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.lang.reflect.*;
 
 /**
@@ -32,27 +34,48 @@ import java.lang.reflect.*;
  }
  }
  </pre>
+
+ <p>
+ Appending a record does not itself need this monitor: records are
+ copied into a LogBuffer, which gives each one its LSN (its offset in
+ the log) and has its own thread write them out.  Code that reads the log
+ back first waits for the buffer to be written out.
  */
 
 /**
- * <p> The format of the log file is as follows:
+ * <p> The format of the log is as follows:
  * <p/>
  * <ul>
  * <p/>
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log file itself only holds a header.  Its first long integer
+ * represents the LSN of the last written checkpoint, or -1 if there are no
+ * checkpoints
+ * <p/>
+ * <li> The second long integer identifies the log.  A new id is chosen
+ * whenever the log is started over, so that page LSNs recorded against an
+ * older log (see HeapFile) are not trusted.
+ * <p/>
+ * <li> The third long integer is the LSN of the oldest record kept.
  * <p/>
- * <li> All additional data in the log consists of log records.  Log
- * records are variable length.
+ * <li> The log records are stored in segment files of a fixed size, see
+ * LogSegments.  Log records are variable length.  After each checkpoint,
+ * the segments before the point where recovery and rollback would start
+ * reading are recycled (see logTruncate).
  * <p/>
- * <li> Each log record begins with an integer type and a long integer
- * transaction id.
+ * <li> Each log record begins with an integer type, an integer length
+ * (the size of the whole record in bytes, its trailing LSN included), a
+ * long integer transaction id and the LSN of the transaction's previous
+ * record (its prevLSN), or -1 for a BEGIN record and for transactions that
+ * did not log a BEGIN.  Following the prevLSNs visits a transaction's
+ * records from last to first.
  * <p/>
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with a long integer representing its LSN, the
+ * position in the log where the record began.  A record is only decoded
+ * once its type is known and the LSN at the end its length gives matches,
+ * so the bytes past the end of the log are never mistaken for a record.
  * <p/>
- * <li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
- * CHECKPOINT, and CLR
+ * <li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * CHECKPOINT, CLR, INSERT and DELETE
  * <p/>
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  * <p/>
@@ -65,13 +88,28 @@ import java.lang.reflect.*;
  * compensating log record and it is written during undo phase of rollback
  * and recovery.
  * <p/>
- * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id for each active transaction.
+ * <li>INSERT and DELETE records describe a single tuple added to or
+ * removed from a HeapPage: the table id and page number of the page, the
+ * slot, and the raw bytes of the tuple, preceded by their length.  They are
+ * much smaller than UPDATE records, and are redone by filling or emptying
+ * the slot and undone the other way around.  See LogFile.readRecordId() and
+ * LogFile.readTupleData().
+ * <p/>
+ * <li> CHECKPOINT records consist of the LSN where the checkpoint began,
+ * the transaction table and the dirty page table.  The transaction table
+ * holds each active transaction with the LSN of its last record; the dirty
+ * page table holds each page in the buffer pool whose changes may not be on
+ * disk, with the LSN of the first record that describes them (its recLSN).
+ * Recovery analyzes the log from the LSN where the checkpoint began, and
+ * redoes it from the smallest recLSN.
  * <p/>
  * 
- * checkpoint: int type, long tid, int numtxns, [long tid]
+ * checkpoint: int type, int length, long tid, long prevLSN, long beginLSN, int numtxns,
+ * [long tid, long lastLSN], int numpages, [int tableid, int pageno,
+ * long recLSN]
+ * <p/>
+ * insert/delete: int type, int length, long tid, long prevLSN, int tableid, int pageno,
+ * int slot, int length, [byte tuple]
  * </ul>
  *
  * @author mhay, adapted from Madden
@@ -80,16 +118,127 @@ import java.lang.reflect.*;
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf;       // the header
+    private final LogSegments segments; // the records
     private LogFileRecovery logFileRecovery;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    final static int HEADER_SIZE = 3 * LONG_SIZE;
+    // type, length, tid and prevLSN
+    final static int RECORD_HEADER_SIZE = 2 * INT_SIZE + 2 * LONG_SIZE;
+
+    private static long segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * An entry of the transaction table.  A record of the transaction is
+     * appended while holding the entry's monitor, so that the transaction's
+     * records are chained through their prevLSNs in the order they were
+     * appended.
+     */
+    private static class TxnEntry {
+        long firstLSN = NO_LSN;
+        long lastLSN = NO_LSN;
+    }
+
+    // the transaction table: the transactions that logged a BEGIN and have
+    // not committed or aborted yet
+    private final Map<Long, TxnEntry> transactions = new ConcurrentHashMap<Long, TxnEntry>();
+
+    private volatile long logId;
+    private volatile long firstLSN;
+
+    // the log before this is not needed after a crash: it is the smaller of
+    // the start of the last checkpoint and of its dirty pages' recLSNs
+    private volatile long redoPoint = NO_LSN;
+
+    // the tail of the log; created by the first append.  Records are
+    // appended while page monitors are held, so creating it must not wait
+    // for this log's monitor.
+    private volatile LogBuffer buffer;
+    private final Object bufferLock = new Object();
+
+    /**
+     * Default time between automatic checkpoints, in milliseconds.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * Default amount of log, in bytes, appended between automatic
+     * checkpoints.
+     */
+    public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 16 << 20;
+
+    // checkpoints are taken one at a time, and not once the log is closed.
+    // Lock order: checkpointLock, then this log's monitor.
+    private final Object checkpointLock = new Object();
+    private boolean closed;                             // guarded by checkpointLock
+    // the failure of an automatic checkpoint, reported to the next caller
+    // of logCheckpoint or close
+    private volatile IOException checkpointFailure;
+    private volatile long checkpointBeginLSN = NO_LSN;  // of the last checkpoint
+    private volatile long checkpointLSN;                // end of the log at the last checkpoint
+    private volatile long checkpointTime = System.currentTimeMillis();
+    private volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL_MS;
+    private volatile long checkpointLogBytes = DEFAULT_CHECKPOINT_LOG_BYTES;
+    private volatile boolean recovering;
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+    private Checkpointer checkpointer;      // started with the log buffer
+
+    /**
+     * Background thread that takes a checkpoint once the checkpoint
+     * interval has passed, or once enough log has been appended, since the
+     * last one.
+     */
+    private class Checkpointer extends Thread {
+        private volatile boolean running = true;
+        private boolean wakeUp;
+
+        Checkpointer() {
+            super("LogFile-checkpointer");
+            setDaemon(true);
+        }
+
+        synchronized void wakeUp() {
+            wakeUp = true;
+            notifyAll();
+        }
 
-    private Set<Long> activeTids = new HashSet<Long>();
+        void shutdown() {
+            running = false;
+            wakeUp();
+        }
+
+        public void run() {
+            while (running) {
+                synchronized (this) {
+                    long interval = checkpointInterval;
+                    long wait = interval > 0
+                            ? Math.max(1, checkpointTime + interval - System.currentTimeMillis())
+                            : 0;
+                    if (!wakeUp) {
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    wakeUp = false;
+                }
+                if (running && !recovering && checkpointDue()) {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        checkpointFailure = e;
+                    }
+                }
+            }
+        }
+    }
 
     /**
      * Constructor.
@@ -107,7 +256,13 @@ public class LogFile {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
-        logFileRecovery = new LogFileRecovery(new RandomAccessFile(logFile, "r"));
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            logId = raf.readLong();
+            firstLSN = raf.readLong();
+        }
+        segments = new LogSegments(f, segmentSize);
+        logFileRecovery = new LogFileRecovery(segments.reader(false));
 
 
         // install shutdown hook to force cleanup on close
@@ -121,21 +276,213 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
-    void preAppend() throws IOException {
-        // we're about to append a log record. if we weren't sure whether the
-        // DB wants to do recovery, we're sure now -- it didn't. So truncate
-        // the log.
-        if (recoveryUndecided) {
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
+    /**
+     * @return the log buffer that records are appended to
+     */
+    LogBuffer preAppend() throws IOException {
+        LogBuffer b = buffer;
+        if (b != null) {
+            return b;
+        }
+        synchronized (bufferLock) {
+            if (buffer == null) {
+                // we're about to append a log record. if we weren't sure whether the
+                // DB wants to do recovery, we're sure now -- it didn't. So truncate
+                // the log.
+                if (recoveryUndecided) {
+                    recoveryUndecided = false;
+                    firstLSN = segments.reset(segmentSize);
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    logId = new Random().nextLong();
+                    raf.writeLong(logId);
+                    raf.writeLong(firstLSN);
+                    raf.getChannel().force(true);
+                }
+                // records are appended after whatever is in the log already
+                int capacity = Math.max(LogBuffer.DEFAULT_CAPACITY, 4 * BufferPool.getPageSize());
+                checkpointLSN = segments.end();
+                buffer = new LogBuffer(segments, segments.end(), capacity);
+                checkpointer = new Checkpointer();
+                checkpointer.start();
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Appends a record of the specified transaction to the log, chained to
+     * the transaction's previous record.
+     *
+     * @param type the record type
+     * @param tid  the transaction the record belongs to
+     * @param body the rest of the record, after its prevLSN
+     * @return the LSN of the record
+     */
+    private long append(int type, long tid, ByteArrayOutputStream body) throws IOException {
+        TxnEntry txn = transactions.get(tid);
+        if (txn == null) {
+            return append(type, tid, NO_LSN, body);
+        }
+        synchronized (txn) {
+            txn.lastLSN = append(type, tid, txn.lastLSN, body);
+            if (txn.firstLSN == NO_LSN) {
+                txn.firstLSN = txn.lastLSN;
+            }
+            if (type == LogType.COMMIT_RECORD || type == LogType.ABORT_RECORD) {
+                // together with its last record, so that a checkpoint never
+                // lists a transaction whose end it does not cover
+                transactions.remove(tid);
+            }
+            return txn.lastLSN;
+        }
+    }
+
+    private long append(int type, long tid, long prevLSN, ByteArrayOutputStream body)
+            throws IOException {
+        int length = RECORD_HEADER_SIZE + body.size() + LONG_SIZE;
+        ByteArrayOutputStream record = new ByteArrayOutputStream(length - LONG_SIZE);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(type);
+        out.writeInt(length);
+        out.writeLong(tid);
+        out.writeLong(prevLSN);
+        body.writeTo(out);
+        long lsn = preAppend().append(record.toByteArray());
+        long logBytes = checkpointLogBytes;
+        if (logBytes > 0 && lsn - checkpointLSN >= logBytes) {
+            checkpointer.wakeUp();
+        }
+        return lsn;
+    }
+
+    private boolean checkpointDue() {
+        long interval = checkpointInterval;
+        long logBytes = checkpointLogBytes;
+        return (interval > 0 && System.currentTimeMillis() - checkpointTime >= interval)
+                || (logBytes > 0 && preAppendedEnd() - checkpointLSN >= logBytes);
+    }
+
+    private long preAppendedEnd() {
+        LogBuffer b = buffer;
+        return b == null ? 0 : b.end();
+    }
+
+    /**
+     * Sets the time between automatic checkpoints.
+     *
+     * @param ms the interval in milliseconds, or 0 for no timed checkpoints
+     */
+    public void setCheckpointInterval(long ms) {
+        checkpointInterval = ms;
+        Checkpointer c = checkpointer;
+        if (c != null) {
+            c.wakeUp();
+        }
+    }
+
+    /**
+     * Sets how much log is appended between automatic checkpoints.
+     *
+     * @param bytes the amount of log, or 0 for no checkpoints triggered by
+     *              the size of the log
+     */
+    public void setCheckpointLogSize(long bytes) {
+        checkpointLogBytes = bytes;
+    }
+
+    /**
+     * Sets the number of threads that redo the log during recovery.  The
+     * records of each page are redone by the same thread, in order.
+     *
+     * @param threads the number of threads, or 1 to redo in the thread that
+     *                calls recover()
+     */
+    public void setRedoThreads(int threads) {
+        redoThreads = Math.max(1, threads);
+    }
+
+    int getRedoThreads() {
+        return redoThreads;
+    }
+
+    /**
+     * @return the LSN where the last checkpoint began, or NO_LSN if none was
+     * taken since the log was opened; changes logged before it should be
+     * written out so that the next checkpoint can start redo later
+     */
+    long getCheckpointLSN() {
+        return checkpointBeginLSN;
+    }
+
+    /**
+     * @return the id of this log, which page LSNs are recorded against
+     */
+    long getLogId() {
+        return logId;
+    }
+
+    /**
+     * @return the LSN of the oldest record kept in the log
+     */
+    long getFirstLSN() {
+        return firstLSN;
+    }
+
+    /**
+     * @return the LSN of the last checkpoint record, as the header says, or
+     * NO_CHECKPOINT_ID if there is none
+     */
+    synchronized long readCheckpointLSN() throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return NO_CHECKPOINT_ID;
         }
-        // we're about to append a log record... make sure we're at the end of the log!
-        if (raf.getFilePointer() != raf.length()) {
-            throw new RuntimeException("About to append to log file but not" +
-                    " located at end of log!  Risk overwriting log data!");
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    /**
+     * Sets the size of the segment files of logs started from now on.
+     * THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+     *
+     * @param bytes the size of a segment
+     */
+    public static void setSegmentSize(long bytes) {
+        segmentSize = bytes;
+    }
+
+    /**
+     * Restores the default segment size.
+     */
+    public static void resetSegmentSize() {
+        segmentSize = LogSegments.DEFAULT_SEGMENT_SIZE;
+    }
+
+    /**
+     * Deletes the segment files of the log when the virtual machine exits,
+     * as File.deleteOnExit() does.
+     * THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+     */
+    public static void deleteSegmentsOnExit() {
+        LogSegments.deleteOnExit = true;
+    }
+
+    /**
+     * @return the segments the records of this log are stored in
+     */
+    LogSegments getSegments() {
+        return segments;
+    }
+
+    /**
+     * Writes out whatever is still in the log buffer, so that the log can
+     * be read from the file.
+     */
+    private void flushBuffer() throws IOException {
+        LogBuffer b = buffer;
+        if (b != null) {
+            b.flush();
         }
     }
 
@@ -144,17 +491,57 @@ public class LogFile {
         // transactions and so checking for active can cause tests to fail
         /*
         if (shouldBeActive) {
-            if (!activeTids.contains(tid.getId())) {
+            if (!transactions.containsKey(tid.getId())) {
                 throw new IOException("This tid should be active but is not!");
             }
         } else {
-            if (activeTids.contains(tid.getId())) {
+            if (transactions.containsKey(tid.getId())) {
                 throw new IOException("This tid should NOT be active but it is!");
             }
         }
         */
     }
 
+    /**
+     * @return true if a BEGIN record was written for the specified
+     * transaction and it has not committed or aborted yet.  Does not take
+     * this log's monitor: the buffer pool asks on every tuple change.
+     */
+    public boolean isActive(TransactionId tid) {
+        return transactions.containsKey(tid.getId());
+    }
+
+    /**
+     * Puts a transaction that recovery found unfinished back in the
+     * transaction table, so that the records that undo it continue its
+     * chain.
+     *
+     * @param tid     the unfinished transaction
+     * @param lastLSN the LSN of its last record
+     */
+    synchronized void resumeTransaction(long tid, long lastLSN) {
+        TxnEntry txn = new TxnEntry();
+        // where its chain begins is not known: keep the whole log
+        txn.firstLSN = firstLSN;
+        txn.lastLSN = lastLSN;
+        transactions.put(tid, txn);
+    }
+
+    /**
+     * @return the LSN of the last record of the specified transaction, from
+     * which its records can be visited through their prevLSNs, or NO_LSN if
+     * it is not active or has logged nothing
+     */
+    long getLastLSN(long tid) {
+        TxnEntry txn = transactions.get(tid);
+        if (txn == null) {
+            return NO_LSN;
+        }
+        synchronized (txn) {
+            return txn.lastLSN;
+        }
+    }
+
     /**
      * Write a BEGIN record for the specified transaction
      *
@@ -163,31 +550,22 @@ public class LogFile {
     public synchronized void logXactionBegin(TransactionId tid)
             throws IOException {
         checkActive(tid, false);
-        preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
-        activeTids.add(tid.getId());
+        transactions.put(tid.getId(), new TxnEntry());
+        append(LogType.BEGIN_RECORD, tid.getId(), new ByteArrayOutputStream());
     }
 
     /**
      * Write a commit record to disk for the specified tid,
-     * and force the log to disk.
+     * and force the log to disk.  The log is forced without holding this
+     * log's monitor, so transactions that commit at the same time share a
+     * single force (group commit).
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         //should we verify that this is a live transaction?
         checkActive(tid, true);
-        preAppend();
-
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(recordStart);
-        force();
-        activeTids.remove(tid.getId());
+        force(append(LogType.COMMIT_RECORD, tid.getId(), new ByteArrayOutputStream()));
     }
 
     /**
@@ -207,7 +585,8 @@ public class LogFile {
                 checkActive(tid, true);
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (follows the chain from their lastLSN)
+                flushBuffer();
                 logFileRecovery.rollback(tid);
             }
         }
@@ -221,13 +600,7 @@ public class LogFile {
      *            not have a live transaction.
      */
     public synchronized void logAbort(Long tid) throws IOException {
-        preAppend();
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.ABORT_RECORD);
-        raf.writeLong(tid);
-        raf.writeLong(recordStart);
-        force();
-        activeTids.remove(tid);
+        force(append(LogType.ABORT_RECORD, tid, new ByteArrayOutputStream()));
     }
 
     /**
@@ -237,28 +610,28 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
-                                      Page after)
+    public long logWrite(TransactionId tid, Page before,
+                         Page after)
             throws IOException {
         checkActive(tid, true);
-        preAppend();
         /* update record consists of
 
            record type
            transaction id
+           prevLSN
            before page data (see writePageData)
            after page data
            start offset
         */
 
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        writePageData(out, before);
+        writePageData(out, after);
+        return append(LogType.UPDATE_RECORD, tid.getId(), record);
     }
 
     /**
@@ -267,11 +640,12 @@ public class LogFile {
      *
      * @param tid    The transaction performing the write
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logCLR(TransactionId tid, Page after)
+    public long logCLR(TransactionId tid, Page after)
             throws IOException {
-        logCLR(tid.getId(), after);
+        return logCLR(tid.getId(), after);
     }
 
     /**
@@ -281,29 +655,89 @@ public class LogFile {
      * @param tid    The transaction performing the write. Need
      *               long because may not have a live transaction.
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see simpledb.Page#getBeforeImage
      */
-    public synchronized void logCLR(Long tid, Page after)
+    public long logCLR(Long tid, Page after)
             throws IOException {
 
         // transaction may be active or we may be in recovery mode
-        preAppend();
         /* update record consists of
 
            record type
            transaction id
+           prevLSN
            after page data (see writePageData)
            start offset
         */
-        Long recordStart = raf.getFilePointer();
-        raf.writeInt(LogType.CLR_RECORD);
-        raf.writeLong(tid);
-        writePageData(raf, after);
-        raf.writeLong(recordStart);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        writePageData(out, after);
+        return append(LogType.CLR_RECORD, tid, record);
+    }
+
+    /**
+     * Write an INSERT record for a tuple that the specified transaction
+     * added to a HeapPage.
+     *
+     * @param tid   The transaction performing the insert
+     * @param rid   The slot the tuple was stored in
+     * @param tuple The raw bytes of the tuple
+     * @return the LSN of the record
+     */
+    public long logInsert(TransactionId tid, RecordId rid, byte[] tuple)
+            throws IOException {
+        return logTuple(LogType.INSERT_RECORD, tid, rid, tuple);
+    }
+
+    /**
+     * Write a DELETE record for a tuple that the specified transaction
+     * removed from a HeapPage.
+     *
+     * @param tid   The transaction performing the delete
+     * @param rid   The slot the tuple was removed from
+     * @param tuple The raw bytes of the tuple, needed to undo the delete
+     * @return the LSN of the record
+     */
+    public long logDelete(TransactionId tid, RecordId rid, byte[] tuple)
+            throws IOException {
+        return logTuple(LogType.DELETE_RECORD, tid, rid, tuple);
+    }
+
+    private long logTuple(int type, TransactionId tid, RecordId rid, byte[] tuple)
+            throws IOException {
+        checkActive(tid, true);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(rid.getPageId().getTableId());
+        out.writeInt(rid.getPageId().pageNumber());
+        out.writeInt(rid.tupleno());
+        out.writeInt(tuple.length);
+        out.write(tuple);
+        return append(type, tid.getId(), record);
     }
 
+    /**
+     * Reads the slot of an INSERT or DELETE record.
+     */
+    static RecordId readRecordId(LogSegments.Reader raf) throws IOException {
+        int tableId = raf.readInt();
+        int pageNo = raf.readInt();
+        int slot = raf.readInt();
+        return new RecordId(new HeapPageId(tableId, pageNo), slot);
+    }
 
-    static void writePageData(RandomAccessFile raf, Page p) throws IOException {
+    /**
+     * Reads the tuple bytes of an INSERT or DELETE record; follows
+     * readRecordId().
+     */
+    static byte[] readTupleData(LogSegments.Reader raf) throws IOException {
+        byte[] tuple = new byte[checkLength(raf, raf.readInt())];
+        raf.readFully(tuple);
+        return tuple;
+    }
+
+    static void writePageData(DataOutput raf, Page p) throws IOException {
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -330,95 +764,206 @@ public class LogFile {
         raf.write(pageData);
     }
 
-    static Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * Checks a length read from the log against what is left of the log, so
+     * that a damaged record does not make the reader allocate an arbitrary
+     * amount of memory.
+     */
+    private static int checkLength(LogSegments.Reader raf, int length) throws IOException {
+        if (length < 0 || length > raf.available()) {
+            throw new IOException("bad length " + length + " in log record at " + raf.getFilePointer());
+        }
+        return length;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    // the constructors named by page images in the log, looked up once
+    private static final Map<String, Constructor<?>> idConstructors = new ConcurrentHashMap<String, Constructor<?>>();
+    private static final Map<String, Constructor<?>> pageConstructors = new ConcurrentHashMap<String, Constructor<?>>();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
+    private static Constructor<?> idConstructor(String idClassName) throws IOException {
+        Constructor<?> c = idConstructors.get(idClassName);
+        if (c == null) {
+            c = loadClass(idClassName, PageId.class).getDeclaredConstructors()[0];
+            idConstructors.put(idClassName, c);
+        }
+        return c;
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    // pages are rebuilt with their (PageId, byte[]) constructor
+    private static Constructor<?> pageConstructor(String pageClassName, Constructor<?> idConst)
+            throws IOException {
+        String key = pageClassName + "/" + idConst.getDeclaringClass().getName();
+        Constructor<?> c = pageConstructors.get(key);
+        if (c == null) {
+            try {
+                c = loadClass(pageClassName, Page.class)
+                        .getDeclaredConstructor(idConst.getDeclaringClass(), byte[].class);
+            } catch (NoSuchMethodException e) {
+                throw badImage(e);
+            }
+            pageConstructors.put(key, c);
+        }
+        return c;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    // only classes of the expected kind are looked up, and not initialized
+    // unless they are
+    private static Class<?> loadClass(String name, Class<?> kind) throws IOException {
+        Class<?> c;
+        try {
+            c = Class.forName(name, false, LogFile.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw badImage(e);
+        }
+        if (!kind.isAssignableFrom(c)) {
+            throw new IOException("bad page image in log: " + name + " is not a " + kind.getSimpleName());
+        }
+        return c;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private static IOException badImage(Exception e) {
+        return new IOException("bad page image in log: " + e, e);
+    }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+    /**
+     * Reads a page image written by writePageData().  The image is copied
+     * straight out of the reader's window into the page's buffer, and the
+     * classes it names are only looked up the first time they are seen, so
+     * reading a page image costs no more than the copy.
+     *
+     * @throws IOException if the image is damaged or names a class that is
+     *                     not a Page or PageId
+     */
+    static Page readPageData(LogSegments.Reader raf) throws IOException {
+        String pageClassName = raf.readUTF();
+        String idClassName = raf.readUTF();
+        Constructor<?> idConst = idConstructor(idClassName);
+        Constructor<?> pageConst = pageConstructor(pageClassName, idConst);
+        int numIdArgs = checkLength(raf, raf.readInt());
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = raf.readInt();
+        }
+        try {
+            PageId pid = (PageId) idConst.newInstance(idArgs);
 
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new IOException();
+            byte[] pageData = new byte[checkLength(raf, raf.readInt())];
+            raf.readFully(pageData);
+            return (Page) pageConst.newInstance(pid, pageData);
         } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw badImage(e);
         } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw badImage(e);
         } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+            throw badImage(e);
+        } catch (IllegalArgumentException e) {
+            throw badImage(e);
         }
-        return newPage;
     }
 
     /**
-     * Checkpoint the log and write a checkpoint record.
+     * Checkpoint the log and write a checkpoint record.  Checkpoints are
+     * fuzzy: no page is written out and transactions keep running while
+     * the checkpoint is taken.  The dirty page table in the record tells
+     * recovery where redo has to start; the BufferPool's cleaner writes
+     * back pages dirtied before the last checkpoint, so that the next one
+     * can start redo later.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                long startCpOffset, endCpOffset;
-
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(LogType.CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(activeTids.size());
-                for (Long key : activeTids) {
-                    raf.writeLong(key);
+        IOException failure = checkpointFailure;
+        if (failure != null) {
+            checkpointFailure = null;
+            throw failure;
+        }
+        checkpoint();
+    }
+
+    private void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            if (closed) {
+                throw new IOException("the log is closed");
+            }
+            // records appended while the tables are collected are
+            // analyzed again by recovery
+            long beginLSN = preAppend().end();
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeLong(beginLSN);
+
+            //write list of outstanding transactions
+            Map<Long, Long> txns = new HashMap<Long, Long>();
+            for (Map.Entry<Long, TxnEntry> txn : transactions.entrySet()) {
+                synchronized (txn.getValue()) {
+                    if (transactions.get(txn.getKey()) == txn.getValue()) {
+                        txns.put(txn.getKey(), txn.getValue().lastLSN);
+                    }
                 }
+            }
+            out.writeInt(txns.size());
+            for (Map.Entry<Long, Long> txn : txns.entrySet()) {
+                out.writeLong(txn.getKey());
+                out.writeLong(txn.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(startCpOffset);
+            // and the pages that may have to be redone
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            long redo = beginLSN;
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> page : dirtyPages.entrySet()) {
+                out.writeInt(page.getKey().getTableId());
+                out.writeInt(page.getKey().pageNumber());
+                out.writeLong(page.getValue());
+                redo = Math.min(redo, page.getValue());
             }
-        }
+            //no tid , but leave space for convenience
+            long startCpOffset = append(LogType.CHECKPOINT_RECORD, -1, NO_LSN, record);
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force(startCpOffset);
+            // a positional write leaves the file pointer of a concurrent
+            // rollback alone
+            ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+            header.putLong(startCpOffset).flip();
+            raf.getChannel().write(header, 0);
 
+            checkpointBeginLSN = beginLSN;
+            redoPoint = redo;
+            checkpointLSN = startCpOffset;
+            checkpointTime = System.currentTimeMillis();
 
-        logTruncate();
+            // under the lock, so that close waits for it
+            logTruncate();
+        }
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption.  Recovery reads the log from the redo point of the last
+     * checkpoint, and rolling back a transaction reads it from the
+     * transaction's first record; the segments before both are recycled.
      */
     public synchronized void logTruncate() throws IOException {
-        // todo: implement me
+        long keep = redoPoint;
+        if (keep == NO_LSN || recovering || closed) {
+            return;
+        }
+        for (TxnEntry txn : transactions.values()) {
+            synchronized (txn) {
+                if (txn.firstLSN != NO_LSN) {
+                    keep = Math.min(keep, txn.firstLSN);
+                }
+            }
+        }
+        if (keep > firstLSN) {
+            // the header says where the log starts before it stops being there
+            ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+            header.putLong(keep).flip();
+            raf.getChannel().write(header, 2 * LONG_SIZE);
+            raf.getChannel().force(false);
+            firstLSN = keep;
+            segments.truncate(keep);
+        }
     }
 
     /**
@@ -426,10 +971,12 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // a checkpoint with no dirty pages: recovery has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -444,15 +991,98 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                recoveryUndecided = false;
-                raf.seek(raf.length());      // go to end of log file
-                logFileRecovery.recover();
+                synchronized (bufferLock) {
+                    recoveryUndecided = false;
+                }
+                // recovery works on pages outside the buffer pool, which a
+                // checkpoint would not see
+                recovering = true;
+                try {
+                    if (buffer == null) {
+                        // the log ends where its records stop reading back
+                        long checkpoint = readCheckpointLSN();
+                        long from = checkpoint == NO_CHECKPOINT_ID ? firstLSN : checkpoint;
+                        segments.setEnd(logFileRecovery.findEnd(segments.reader(true), from));
+                        segments.truncate(firstLSN);
+                    }
+                    flushBuffer();
+                    logFileRecovery.recover();
+                } finally {
+                    recovering = false;
+                }
             }
         }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force everything appended to the log so far to disk.
+     */
+    public void force() throws IOException {
+        LogBuffer b = buffer;
+        if (b != null) {
+            b.force();
+        }
+    }
+
+    /**
+     * Waits until the record with the specified LSN, and every record before
+     * it, is on disk.  Transactions that commit at the same time share a
+     * single force (group commit).
+     *
+     * @param lsn the LSN of the last record that must be durable
+     */
+    public void force(long lsn) throws IOException {
+        preAppend().force(lsn);
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk
+     */
+    public long getForceCount() {
+        LogBuffer b = buffer;
+        return b == null ? 0 : b.getForceCount();
+    }
+
+    /**
+     * Writes out the log buffer and stops its writer thread, without
+     * writing a checkpoint.  A checkpoint that is being taken is finished
+     * first.  The log file may not be appended to afterwards.
+     *
+     * @throws IOException if closing fails, or an automatic checkpoint
+     *                     failed and was not reported yet
+     */
+    public void close() throws IOException {
+        Checkpointer c;
+        synchronized (bufferLock) {
+            c = checkpointer;
+        }
+        if (c != null) {
+            c.shutdown();
+            try {
+                c.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while stopping the checkpointer");
+            }
+        }
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                LogBuffer b = buffer;
+                if (b != null) {
+                    b.close();
+                }
+                segments.close();
+                raf.close();
+            }
+        }
+        IOException failure = checkpointFailure;
+        if (failure != null) {
+            checkpointFailure = null;
+            throw failure;
+        }
     }
 
 }
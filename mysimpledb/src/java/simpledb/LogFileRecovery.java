@@ -1,17 +1,66 @@
 package simpledb;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author mhay
  */
 class LogFileRecovery {
 
-    private final RandomAccessFile readOnlyLog;
+    private final LogSegments.Reader readOnlyLog;
+
+    /**
+     * Records a redo worker may have queued before the reader waits.
+     */
+    static final int REDO_QUEUE = 1024;
+
+    // tells a redo worker that the log has been read
+    private static final LogRecord END_OF_REDO = new LogRecord();
+
+    /**
+     * A log record read back from the log file.  Only the fields of its
+     * type are set.
+     */
+    private static class LogRecord {
+        long lsn;
+        int type;
+        long tid;
+        long prevLSN;
+
+        Page before;        // UPDATE
+        Page after;         // UPDATE, CLR
+        RecordId rid;       // INSERT, DELETE
+        byte[] tuple;       // INSERT, DELETE
+
+        long beginLSN;                      // CHECKPOINT
+        Map<Long, Long> transactions;       // CHECKPOINT
+        Map<PageId, Long> dirtyPages;       // CHECKPOINT
+
+        /**
+         * @return the page the record changes, or null if it changes none
+         */
+        PageId pageId() {
+            if (after != null) {
+                return after.getId();
+            }
+            return rid != null ? rid.getPageId() : null;
+        }
+    }
 
     /**
      * Helper class for LogFile during rollback and recovery.
@@ -20,12 +69,125 @@ class LogFileRecovery {
      * If this class wants to modify the log, it should do something
      * like this:  Database.getLogFile().logAbort(tid);
      *
-     * @param readOnlyLog a read only copy of the log file
+     * @param readOnlyLog a reader of the log
      */
-    public LogFileRecovery(RandomAccessFile readOnlyLog) {
+    public LogFileRecovery(LogSegments.Reader readOnlyLog) {
         this.readOnlyLog = readOnlyLog;
     }
 
+    /**
+     * Reads the record that starts at the current position in the log,
+     * leaving the position at the start of the next record.
+     */
+    private LogRecord readRecord() throws IOException {
+        return readRecord(readOnlyLog);
+    }
+
+    /**
+     * Reads the record that starts at the current position of the specified
+     * reader.
+     *
+     * The type and the trailing LSN are checked before the rest of the
+     * record is decoded, so that garbage is rejected without being parsed.
+     *
+     * @throws IOException if the record is not all there, or does not end
+     *                     with its own LSN
+     */
+    private static LogRecord readRecord(LogSegments.Reader readOnlyLog) throws IOException {
+        LogRecord record = new LogRecord();
+        record.lsn = readOnlyLog.getFilePointer();
+        record.type = readOnlyLog.readInt();
+        if (record.type < LogType.ABORT_RECORD || record.type > LogType.DELETE_RECORD) {
+            throw new IOException("Unexpected type!  Type = " + record.type);
+        }
+        int length = readOnlyLog.readInt();
+        long end = record.lsn + length;
+        if (length < LogFile.RECORD_HEADER_SIZE + LogFile.LONG_SIZE || end > readOnlyLog.length()) {
+            throw new IOException("bad length " + length + " in log record at " + record.lsn);
+        }
+        long body = readOnlyLog.getFilePointer();
+        // start of the record, only useful when going backwards
+        readOnlyLog.seek(end - LogFile.LONG_SIZE);
+        if (readOnlyLog.readLong() != record.lsn) {
+            throw new IOException("log record at " + record.lsn + " is damaged");
+        }
+        readOnlyLog.seek(body);
+        record.tid = readOnlyLog.readLong();
+        record.prevLSN = readOnlyLog.readLong();
+        switch (record.type) {
+            case LogType.UPDATE_RECORD:
+                record.before = LogFile.readPageData(readOnlyLog);
+                record.after = LogFile.readPageData(readOnlyLog);
+                break;
+            case LogType.CLR_RECORD:
+                record.after = LogFile.readPageData(readOnlyLog);
+                break;
+            case LogType.INSERT_RECORD:
+            case LogType.DELETE_RECORD:
+                record.rid = LogFile.readRecordId(readOnlyLog);
+                record.tuple = LogFile.readTupleData(readOnlyLog);
+                break;
+            case LogType.CHECKPOINT_RECORD:
+                record.beginLSN = readOnlyLog.readLong();
+                record.transactions = new HashMap<Long, Long>();
+                record.dirtyPages = new HashMap<PageId, Long>();
+                int count = readOnlyLog.readInt();
+                for (int i = 0; i < count; i++) {
+                    long tid = readOnlyLog.readLong();
+                    record.transactions.put(tid, readOnlyLog.readLong());
+                }
+                count = readOnlyLog.readInt();
+                for (int i = 0; i < count; i++) {
+                    HeapPageId pid = new HeapPageId(readOnlyLog.readInt(), readOnlyLog.readInt());
+                    record.dirtyPages.put(pid, readOnlyLog.readLong());
+                }
+                break;
+            case LogType.BEGIN_RECORD:
+            case LogType.COMMIT_RECORD:
+            case LogType.ABORT_RECORD:
+                break;
+            default:
+                throw new IOException("Unexpected type!  Type = " + record.type);
+        }
+        if (readOnlyLog.getFilePointer() != end - LogFile.LONG_SIZE) {
+            throw new IOException("log record at " + record.lsn + " is damaged");
+        }
+        readOnlyLog.seek(end);
+        return record;
+    }
+
+    /**
+     * Reads the record with the specified LSN.
+     */
+    private LogRecord readRecord(long lsn) throws IOException {
+        readOnlyLog.seek(lsn);
+        return readRecord();
+    }
+
+    /**
+     * Finds the end of the log: the first position, from the specified one,
+     * where no intact record starts.  Past the last record written there
+     * are zeros, a record that was cut short, or the records that a
+     * recycled segment held before, which end with another LSN.
+     *
+     * @param scan a reader that may read past the end of the log
+     * @param from the LSN of a record known to be intact
+     */
+    long findEnd(LogSegments.Reader scan, long from) {
+        scan.seek(from);
+        long end = from;
+        while (true) {
+            try {
+                readRecord(scan);
+            } catch (IOException e) {
+                return end;
+            } catch (RuntimeException e) {
+                return end;
+            }
+            end = scan.getFilePointer();
+        }
+    }
+
     /**
      * Print out a human readable representation of the log
      */
@@ -34,13 +196,12 @@ class LogFileRecovery {
         // and then jump back to it after printing
         Long currentOffset = readOnlyLog.getFilePointer();
 
-        readOnlyLog.seek(0);
-        long lastCheckpoint = readOnlyLog.readLong(); // ignore this
+        readOnlyLog.seek(Database.getLogFile().getFirstLSN());
         System.out.println("BEGIN LOG FILE");
         while (readOnlyLog.getFilePointer() < readOnlyLog.length()) {
-            int type = readOnlyLog.readInt();
-            long tid = readOnlyLog.readLong();
-            switch (type) {
+            LogRecord record = readRecord();
+            long tid = record.tid;
+            switch (record.type) {
                 case LogType.BEGIN_RECORD:
                     System.out.println("<T_" + tid + " BEGIN>");
                     break;
@@ -51,27 +212,21 @@ class LogFileRecovery {
                     System.out.println("<T_" + tid + " ABORT>");
                     break;
                 case LogType.UPDATE_RECORD:
-                    Page beforeImg = LogFile.readPageData(readOnlyLog);
-                    Page afterImg = LogFile.readPageData(readOnlyLog);  // after image
-                    System.out.println("<T_" + tid + " UPDATE pid=" + beforeImg.getId() +">");
+                    System.out.println("<T_" + tid + " UPDATE pid=" + record.before.getId() +">");
                     break;
                 case LogType.CLR_RECORD:
-                    afterImg = LogFile.readPageData(readOnlyLog);  // after image
-                    System.out.println("<T_" + tid + " CLR pid=" + afterImg.getId() +">");
+                    System.out.println("<T_" + tid + " CLR pid=" + record.after.getId() +">");
+                    break;
+                case LogType.INSERT_RECORD:
+                case LogType.DELETE_RECORD:
+                    String op = record.type == LogType.INSERT_RECORD ? " INSERT" : " DELETE";
+                    System.out.println("<T_" + tid + op + " pid=" + record.rid.getPageId() + " slot=" + record.rid.tupleno() + ">");
                     break;
                 case LogType.CHECKPOINT_RECORD:
-                    int count = readOnlyLog.readInt();
-                    Set<Long> tids = new HashSet<Long>();
-                    for (int i = 0; i < count; i++) {
-                        long nextTid = readOnlyLog.readLong();
-                        tids.add(nextTid);
-                    }
-                    System.out.println("<T_" + tid + " CHECKPOINT " + tids + ">");
+                    System.out.println("<T_" + tid + " CHECKPOINT " + record.transactions.keySet()
+                            + " dirty=" + record.dirtyPages.keySet() + ">");
                     break;
-                default:
-                    throw new RuntimeException("Unexpected type!  Type = " + type);
             }
-            long startOfRecord = readOnlyLog.readLong();   // ignored, only useful when going backwards thru log
         }
         System.out.println("END LOG FILE");
 
@@ -94,49 +249,212 @@ class LogFileRecovery {
      * @throws java.io.IOException if tidToRollback has already committed
      */
     public void rollback(TransactionId tidToRollback) throws IOException {
-        
-    	readOnlyLog.seek(readOnlyLog.length()); // undoing so move to end of logfile
-    	long pointerToNextRecent = readOnlyLog.length()-LogFile.LONG_SIZE;
+
+    	// the transaction's records are visited from last to first through
+    	// their prevLSNs, without reading those of other transactions
     	LogFile writeLog = Database.getLogFile();
-    	
-        while(true){
-        	
-        	readOnlyLog.seek(pointerToNextRecent);
-        	long beginLogEntry = readOnlyLog.readLong(); 	
-        	readOnlyLog.seek(beginLogEntry);
-        	
-        	long hook = beginLogEntry;
-        	int type = readOnlyLog.readInt();
-        	long tid = readOnlyLog.readLong();
-        	      	        	        	
-        	//System.out.println("log type:\t"+type);
-        	        	
-        	if (type == LogType.BEGIN_RECORD){
-        		if (tid == tidToRollback.getId()){
-        			//System.out.println("begin");
-        			// it MUST get here at some point
-        			writeLog.logAbort(tid);
-        			return;
-        		}
-        	} else if (type == LogType.COMMIT_RECORD){
-        		if (tid == tidToRollback.getId()){
-        			//System.out.println("commit?");
-        			throw new IOException("Tried to roll back a committed transaction");
-        		}
-        	} else if (type == LogType.UPDATE_RECORD){
-        		if (tid == tidToRollback.getId()){
-        			//System.out.println("update");
-        			Page beforeImage = LogFile.readPageData(readOnlyLog);
+    	long next = writeLog.getLastLSN(tidToRollback.getId());
+    	if (!writeLog.isActive(tidToRollback)){
+    		// committed already, or never began
+    		throw new IOException("Tried to roll back " + tidToRollback + ", which is not active");
+    	}
+    	BufferPool bp = Database.getBufferPool();
+
+    	// heap pages are undone in place in the buffer pool, so that changes
+    	// of other transactions on the same pages are kept
+    	Map<PageId, HeapPage> undone = new HashMap<PageId, HeapPage>();
+
+        while(next != LogFile.NO_LSN){
+        	LogRecord record = readRecord(next);
+        	next = record.prevLSN;
+        	if (record.tid != tidToRollback.getId()){
+        		throw new IOException("record at " + record.lsn + " is not one of " + tidToRollback);
+        	}
+
+        	if (record.type == LogType.COMMIT_RECORD){
+        		throw new IOException("Tried to roll back a committed transaction");
+        	} else if (record.type == LogType.UPDATE_RECORD){
+        		Page beforeImage = record.before;
+        		if (beforeImage instanceof HeapPage) {
+        			HeapPage page = residentPage(beforeImage.getId());
+        			try {
+        				page.setPageData(beforeImage.getPageData());
+        				page.markDirty(true, tidToRollback);
+        			} finally {
+        				bp.unpinPage(page);
+        			}
+        			undone.put(page.getId(), page);
+        		} else {
         			DbFile file =  Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId());
         			file.writePage(beforeImage);
-        			
-        			BufferPool bp = Database.getBufferPool();
         			bp.discardPage(beforeImage.getId());
         			writeLog.logCLR(tidToRollback, beforeImage);
         		}
+        	} else if (record.type == LogType.INSERT_RECORD || record.type == LogType.DELETE_RECORD){
+        		HeapPage page = residentPage(record.rid.getPageId());
+        		try {
+        			undo(page, record);
+        			page.markDirty(true, tidToRollback);
+        		} finally {
+        			bp.unpinPage(page);
+        		}
+        		undone.put(page.getId(), page);
         	}
-        	pointerToNextRecent = hook - LogFile.LONG_SIZE; // puts us at top of the next thing
-        }  
+        }
+
+        // back at the start of the chain.  Log the undone pages and write
+        // them out before the abort record.  They stay in the pool: other
+        // transactions holding record locks may be changing other tuples of
+        // them, so they are written out like BufferPool.flushPage does.  The
+        // CLR is logged and the image taken under the page's monitor, so the
+        // CLR reflects every tuple record logged before it and none after,
+        // and the image is only written once the log is forced up to it.
+        for (HeapPage page : undone.values()) {
+        	HeapPage image;
+        	synchronized (page) {
+        		page.setPageLSN(writeLog.logCLR(tidToRollback, page));
+        		// marked clean before the image is taken, so a change made
+        		// meanwhile leaves the page dirty again
+        		page.markDirty(false, null);
+        		image = page.snapshot();
+        		// as if it had been read back in
+        		page.setBeforeImage();
+        	}
+        	boolean written = false;
+        	try {
+        		writeLog.force(image.getPageLSN());
+        		page.write(image);
+        		written = true;
+        	} finally {
+        		page.flushed(written);
+        	}
+        }
+        writeLog.logAbort(tidToRollback.getId());
+    }
+
+    /**
+     * @return the buffer pool's copy of a page, read in if necessary and
+     * pinned until it is unpinned; no lock is taken, the rolled back
+     * transaction holds it already
+     */
+    private HeapPage residentPage(PageId pid) throws IOException {
+        try {
+            return (HeapPage) Database.getBufferPool().fetchPage(pid, true);
+        } catch (DbException e) {
+            throw new IOException("could not read " + pid + " to roll it back: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies an INSERT or DELETE record to a page.
+     */
+    private static void redo(HeapPage page, LogRecord record) {
+        if (record.type == LogType.INSERT_RECORD) {
+            page.setSlot(record.rid.tupleno(), record.tuple);
+        } else {
+            page.clearSlot(record.rid.tupleno());
+        }
+    }
+
+    /**
+     * Reverses an INSERT or DELETE record on a page.
+     */
+    private static void undo(HeapPage page, LogRecord record) {
+        if (record.type == LogType.INSERT_RECORD) {
+            page.clearSlot(record.rid.tupleno());
+        } else {
+            page.setSlot(record.rid.tupleno(), record.tuple);
+        }
+    }
+
+    /**
+     * @return the copy of a page that recovery works on, read from disk the
+     * first time it is needed
+     */
+    private static Page cachedPage(Map<PageId, Page> pages, PageId pid) {
+        Page page = pages.get(pid);
+        if (page == null) {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * Redoes a record on the recovery copy of its page, unless the page
+     * on disk has the change already.
+     */
+    private static void redoRecord(Map<PageId, Page> pages, Set<PageId> changed, LogRecord record) {
+        PageId pid = record.pageId();
+        Page page = cachedPage(pages, pid);
+        if (pageLSN(page) >= record.lsn){
+            return;     // the page on disk has it already
+        }
+        if (record.after != null){
+            page = record.after;
+            pages.put(pid, page);
+        } else {
+            redo((HeapPage) page, record);
+        }
+        setPageLSN(page, record.lsn);
+        changed.add(pid);
+    }
+
+    /**
+     * Redoes the records of the pages of one partition, in the order they
+     * are queued, on its own copies of the pages.
+     */
+    private static class RedoWorker implements Callable<Void> {
+        final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(REDO_QUEUE);
+        final Map<PageId, Page> pages = new HashMap<PageId, Page>();
+        final Set<PageId> changed = new HashSet<PageId>();
+
+        public Void call() throws InterruptedException {
+            RuntimeException failure = null;
+            while (true) {
+                LogRecord record = queue.take();
+                if (record == END_OF_REDO) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return null;
+                }
+                if (failure == null) {
+                    // once failed, keep taking records so the reader never waits
+                    try {
+                        redoRecord(pages, changed, record);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void await(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("recovery failed: " + cause, cause);
+        }
+    }
+
+    private static long pageLSN(Page page) {
+        return page instanceof HeapPage ? ((HeapPage) page).getPageLSN() : LogFile.NO_LSN;
+    }
+
+    private static void setPageLSN(Page page, long lsn) {
+        if (page instanceof HeapPage) {
+            ((HeapPage) page).setPageLSN(lsn);
+        }
     }
 
     /**
@@ -144,138 +462,221 @@ class LogFileRecovery {
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
      *
+     * Recovery follows ARIES.  Analysis starts at the last checkpoint and
+     * rebuilds the transaction table (the unfinished transactions, with
+     * their last LSN) and the dirty page table (the pages that may be
+     * missing changes, with the first LSN that may be missing).  Redo
+     * repeats history from the smallest recLSN, skipping changes that a
+     * page's LSN shows it already has.  Undo rolls back the unfinished
+     * transactions by following their prevLSN chains.  None of the passes
+     * reads the log before the checkpoint, except undo for the records of
+     * transactions that were active at the checkpoint.
+     *
      * This is called from LogFile.recover after both the LogFile and
      * the BufferPool are locked.
      */
     public void recover() throws IOException {
 
-    	print();
-    	
         // read the last checkpoint!
-    	readOnlyLog.seek(0);
-    	
-    	long recentCheckpoint = readOnlyLog.readLong();
-    	if (recentCheckpoint == -1){
-    		readOnlyLog.seek(0);
-    		recentCheckpoint = LogFile.LONG_SIZE;
-    	}
-    	
-    	// goes to most recent checkpoint
-    	readOnlyLog.seek(recentCheckpoint);
-    	// skips checkpoints information
-    	readOnlyLog.readInt();  // skips past ckeckpoints type (which is ckpt) - could verify this
-    	readOnlyLog.readLong(); // skips past checkpoints tid, who cares
-
-    	// scan forward and determine loser transactions
-    	// scanning checkpoint: read int: read longs for int number of times; this will be end of ckpt
-    	int numTxnsInCkpt = readOnlyLog.readInt();
-    	
-    	System.out.println("num txns in ckpt: " + numTxnsInCkpt);
-    	
-    	LinkedList<Long> tids = new LinkedList<Long>(); // I hate linked lists!
-    	for (int i = 0; i < numTxnsInCkpt; i++){
-    		tids.add(readOnlyLog.readLong()); // 0 almost always. weird
+    	long recentCheckpoint = Database.getLogFile().readCheckpointLSN();
+
+    	// analysis: tid -> last LSN of the losers, page -> recLSN
+    	Map<Long, Long> losers = new HashMap<Long, Long>();
+    	Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+    	long analysisStart = Database.getLogFile().getFirstLSN();
+    	if (recentCheckpoint != LogFile.NO_CHECKPOINT_ID){
+    		LogRecord checkpoint = readRecord(recentCheckpoint);
+    		losers.putAll(checkpoint.transactions);
+    		dirtyPages.putAll(checkpoint.dirtyPages);
+    		// records appended while the checkpoint was taken may be
+    		// missing from its tables
+    		analysisStart = checkpoint.beginLSN;
     	}
-    	
-    	// must read another long to ignore the checkpoint pointer
-    	
-    	readOnlyLog.readLong();
-    	
-    	//System.out.println("num tids:" + tids.size());
-    	
-    	// redo!
-    	while (readOnlyLog.getFilePointer() < readOnlyLog.length()){ // optional - LogFile.LONG_SIZE
-    		
-    		// get type and tids
-    		int type = readOnlyLog.readInt();
-    		long tid = readOnlyLog.readLong();
-    		
-    		if (type == LogType.UPDATE_RECORD){
-    			//System.out.println("update " + tid);
-    			LogFile.readPageData(readOnlyLog);
-                Page afterImage = LogFile.readPageData(readOnlyLog);
-                int tableId = afterImage.getId().getTableId();
-                Database.getCatalog().getDatabaseFile(tableId).writePage(afterImage);
-    			
-    		} else if (type == LogType.ABORT_RECORD){
-    			//System.out.println("abort "+ tid);
-    			tids.remove(tid);
-    			
-    		} else if (type == LogType.COMMIT_RECORD){
-    			//System.out.println("commit "+tid);
-    			tids.remove(tid);
-    			
-    		} else if (type == LogType.CHECKPOINT_RECORD){
-    			//System.out.println("checkpoint "+tid);
-    			throw new RuntimeException("Found another checkpoint?");
-    		} else if (type == LogType.CLR_RECORD){ // very similar to update, but ...
-    			//System.out.println("CLR "+tid);
-    			Page afterImage = LogFile.readPageData(readOnlyLog);
-                int tableId = afterImage.getId().getTableId();
-                Database.getCatalog().getDatabaseFile(tableId).writePage(afterImage);
-    		} else if (type == LogType.BEGIN_RECORD){
-    			//System.out.println("begin "+tid);
-    			tids.add(tid);
+
+    	readOnlyLog.seek(analysisStart);
+    	while (readOnlyLog.getFilePointer() < readOnlyLog.length()){
+    		LogRecord record = readRecord();
+    		if (record.type == LogType.BEGIN_RECORD){
+    			if (!losers.containsKey(record.tid)) {
+    				losers.put(record.tid, record.lsn);
+    			}
+    		} else if (record.type == LogType.COMMIT_RECORD || record.type == LogType.ABORT_RECORD){
+    			losers.remove(record.tid);
+    		} else if (record.type != LogType.CHECKPOINT_RECORD){
+    			Long last = losers.get(record.tid);
+    			if (last != null) {
+    				losers.put(record.tid, Math.max(last, record.lsn));
+    			}
+    			if (!dirtyPages.containsKey(record.pageId())) {
+    				dirtyPages.put(record.pageId(), record.lsn);
+    			}
     		}
-    		readOnlyLog.readLong(); // goes past the pointer address space
     	}
-    	
-    	// undo!
-    	// remember to make CLR's for each update to a loser txn, i think
-    	
-    	//System.out.println("Hey made past redo here");
-    	    	
-    	//System.out.println("*********");
-    	for (int i = 0; i < tids.size(); i++){
-    		System.out.println("tid at i: "+tids.get(i));
+
+    	// redo! works on copies of the pages, which are written out at the end
+    	Map<PageId, Page> pages = new HashMap<PageId, Page>();
+    	Set<PageId> changed = new HashSet<PageId>();
+    	int threads = Database.getLogFile().getRedoThreads();
+    	redo(dirtyPages, pages, changed, threads);
+
+    	// undo! always the latest remaining record of any loser, so that each
+    	// page sees the losers' changes reversed in the opposite order
+    	LogFile writeLog = Database.getLogFile();
+    	PriorityQueue<Long> toUndo = new PriorityQueue<Long>(Math.max(1, losers.size()), Collections.<Long>reverseOrder());
+    	Map<Long, Set<PageId>> undone = new HashMap<Long, Set<PageId>>();
+    	for (Map.Entry<Long, Long> loser : losers.entrySet()){
+    		writeLog.resumeTransaction(loser.getKey(), loser.getValue());
+    		toUndo.add(loser.getValue());
+    		undone.put(loser.getKey(), new HashSet<PageId>());
     	}
-    	//System.out.println("*********");
-    	
-    	//
-    	readOnlyLog.seek(readOnlyLog.length()); // undoing so move to end of logfile
-    	long pointerToNextRecent = readOnlyLog.length()-LogFile.LONG_SIZE;
-        	
-        readOnlyLog.seek(pointerToNextRecent);
-    	
-    	while (!tids.isEmpty()){
-    		//System.out.println("all tids "+tids);
-    		readOnlyLog.seek(pointerToNextRecent);
-    		
-        	long beginLogEntry = readOnlyLog.readLong();
-        	readOnlyLog.seek(beginLogEntry);
-        	
-        	long hook = beginLogEntry;
-        	int type = readOnlyLog.readInt();
-        	long tid = readOnlyLog.readLong();
-        	//System.out.println("this tid "+tid);
-        	
-        	LogFile writeLog = Database.getLogFile();
-        	
-        	if (tids.contains(tid)){ // if a loser?
-        		if (type == LogType.UPDATE_RECORD){
-        			//System.out.println("Was an update to a loser tid");
-        			// set the before image
-        			Page beforeImage = LogFile.readPageData(readOnlyLog);
-        			LogFile.readPageData(readOnlyLog); // skip afterimage 
-        			DbFile file =  Database.getCatalog().getDatabaseFile(beforeImage.getId().getTableId());
-        			
-        			file.writePage(beforeImage); // error must be in write
-        			writeLog.logCLR(tid, beforeImage);
-        			        			
-        		} else if (type == LogType.BEGIN_RECORD){
-        			//System.out.println("Began a loser tid");
-        			tids.remove(tid);
-        			writeLog.logAbort(tid);
-        		} else {
-        			System.out.println("Type: "+type);
-        		}
-        	}
-        	pointerToNextRecent = hook - LogFile.LONG_SIZE;
+
+    	while (!toUndo.isEmpty()){
+    		LogRecord record = readRecord(toUndo.poll());
+    		Set<PageId> touched = undone.get(record.tid);
+    		if (record.type == LogType.UPDATE_RECORD){
+    			// set the before image
+    			pages.put(record.before.getId(), record.before);
+    			touched.add(record.before.getId());
+    		} else if (record.type == LogType.INSERT_RECORD || record.type == LogType.DELETE_RECORD){
+    			undo((HeapPage) cachedPage(pages, record.rid.getPageId()), record);
+    			touched.add(record.rid.getPageId());
+    		}
+    		// CLRs only repeat what undo does anyway
+
+    		if (record.prevLSN != LogFile.NO_LSN){
+    			toUndo.add(record.prevLSN);
+    		} else {
+    			// reached the loser's begin record
+    			for (PageId pid : touched) {
+    				Page page = pages.get(pid);
+    				// as in rollback, the CLR and the page's LSN change together
+    				synchronized (page) {
+    					setPageLSN(page, writeLog.logCLR(record.tid, page));
+    				}
+    				changed.add(pid);
+    			}
+    			writeLog.logAbort(record.tid);
+    		}
     	}
-        // gives the same exact error...
-//        for (long tid: tids){
-//        	TransactionId t = new TransactionId(tid);
-//        	rollback(t);
-//        }
+
+    	// every page is written after the records that describe it are durable
+    	writeLog.force();
+    	writeChanged(pages, changed, threads);
+    }
+
+    /**
+     * Repeats history from the smallest recLSN in the dirty page table.
+     * With several threads, the log is still read in order, by this one,
+     * and each page's records go to the same worker, so each page sees its
+     * changes in LSN order while different pages are redone at once.
+     *
+     * @param dirtyPages the dirty page table built by analysis
+     * @param pages      receives the recovery copies of the pages
+     * @param changed    receives the pages that were changed
+     * @param threads    the number of redo workers; 1 redoes in this thread
+     */
+    private void redo(Map<PageId, Long> dirtyPages, Map<PageId, Page> pages,
+                      Set<PageId> changed, int threads) throws IOException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        RedoWorker[] workers = new RedoWorker[executor != null ? threads : 0];
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new RedoWorker();
+                futures.add(executor.submit(workers[i]));
+            }
+
+            readOnlyLog.seek(Collections.min(dirtyPages.values()));
+            try {
+                while (readOnlyLog.getFilePointer() < readOnlyLog.length()) {
+                    LogRecord record = readRecord();
+                    PageId pid = record.pageId();
+                    if (pid == null) {
+                        continue;
+                    }
+                    Long recLSN = dirtyPages.get(pid);
+                    if (recLSN == null || record.lsn < recLSN) {
+                        continue;   // the change reached the disk before the checkpoint
+                    }
+                    if (workers.length == 0) {
+                        redoRecord(pages, changed, record);
+                    } else {
+                        workers[(pid.hashCode() & Integer.MAX_VALUE) % workers.length].queue.put(record);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted during recovery");
+            } finally {
+                for (RedoWorker worker : workers) {
+                    try {
+                        worker.queue.put(END_OF_REDO);
+                    } catch (InterruptedException e) {
+                        executor.shutdownNow();
+                    }
+                }
+            }
+            await(futures);
+            for (RedoWorker worker : workers) {
+                pages.putAll(worker.pages);
+                changed.addAll(worker.changed);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Writes out the pages recovery changed, a table at a time and, with
+     * several threads, several tables at once.
+     */
+    private static void writeChanged(Map<PageId, Page> pages, Set<PageId> changed, int threads)
+            throws IOException {
+        Map<Integer, List<Page>> byTable = new HashMap<Integer, List<Page>>();
+        for (PageId pid : changed) {
+            List<Page> table = byTable.get(pid.getTableId());
+            if (table == null) {
+                table = new ArrayList<Page>();
+                byTable.put(pid.getTableId(), table);
+            }
+            table.add(pages.get(pid));
+        }
+        if (threads <= 1 || byTable.size() <= 1) {
+            for (Map.Entry<Integer, List<Page>> table : byTable.entrySet()) {
+                writePages(table.getKey(), table.getValue());
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, byTable.size()));
+        try {
+            List<Future<Void>> writes = new ArrayList<Future<Void>>();
+            for (final Map.Entry<Integer, List<Page>> table : byTable.entrySet()) {
+                writes.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        writePages(table.getKey(), table.getValue());
+                        return null;
+                    }
+                }));
+            }
+            await(writes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void writePages(int tableId, List<Page> pages) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).writePages(pages);
+        } else {
+            for (Page page : pages) {
+                file.writePage(page);
+            }
+        }
     }
 }
@@ -0,0 +1,513 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The records of the log, stored in segment files of a fixed size next to
+ * the log file.  A segment is named after the log file and the LSN of its
+ * first byte, in hex ("log.0000000001000000"), and holds the LSNs from there
+ * up to the start of the next segment; a record may continue from one
+ * segment into the next.
+ * <p/>
+ * Segments are filled with zeros when they are created, so writing the log
+ * never changes the length of a file, and forcing it only has to write the
+ * data, not the file's metadata.  A segment is filled under a temporary name
+ * and renamed once it is whole, so a crash while it is being created never
+ * leaves a short segment behind to be mistaken for the segment size.  Segments that are no longer needed are
+ * kept as spares and renamed to hold later LSNs, instead of being deleted
+ * and created again.  A recycled segment still holds its old records, but
+ * those end with the LSN they were written at, which is not where they are
+ * now, so they are not mistaken for new ones (see LogFileRecovery.findEnd).
+ *
+ * @see LogFile
+ */
+public class LogSegments implements LogBuffer.Sink {
+
+    /**
+     * Default size of a segment, in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    /**
+     * Most segments kept as spares; the rest are deleted.
+     */
+    static final int MAX_SPARES = 4;
+
+    /**
+     * Size of the window a Reader reads the log through, in bytes.
+     */
+    static final int READ_WINDOW = 128 << 10;
+
+    private static final int ZERO_CHUNK = 64 << 10;
+
+    // set by tests, so that they do not leave segments behind
+    static volatile boolean deleteOnExit;
+
+    private final File dir;
+    private final String prefix;
+    private long segmentSize;
+
+    // segments in LSN order, by the LSN of their first byte
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    private final Deque<File> spares = new ArrayDeque<File>();
+    private final Set<FileChannel> unforced = new HashSet<FileChannel>();
+    private final Object forceLock = new Object();
+    private long highestStart = -1;     // of any segment ever seen
+    private volatile long end;
+
+    /**
+     * Opens the segments of the specified log file.  Existing segments keep
+     * their size; a segment size only applies to the segments of a log that
+     * is started over.
+     *
+     * @param logFile     the log file the segments belong to
+     * @param segmentSize the size of new segments, in bytes
+     */
+    public LogSegments(File logFile, long segmentSize) throws IOException {
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.prefix = logFile.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        // left by a crash while a segment was being created
+        tempFile().delete();
+
+        Map<Long, File> found = new TreeMap<Long, File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long start = parseStart(f.getName());
+                if (start >= 0) {
+                    found.put(start, f);
+                }
+            }
+        }
+        if (!found.isEmpty()) {
+            this.segmentSize = found.values().iterator().next().length();
+        }
+        for (Map.Entry<Long, File> e : found.entrySet()) {
+            highestStart = Math.max(highestStart, e.getKey());
+            if (e.getValue().length() == this.segmentSize && e.getKey() % this.segmentSize == 0) {
+                if (deleteOnExit) {
+                    e.getValue().deleteOnExit();
+                }
+                segments.put(e.getKey(), new RandomAccessFile(e.getValue(), "rw"));
+            } else {
+                e.getValue().delete();
+            }
+        }
+    }
+
+    private long parseStart(String name) {
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 16) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File file(long start) {
+        return new File(dir, prefix + String.format("%016x", start));
+    }
+
+    // where a new segment is filled before it gets its name
+    private File tempFile() {
+        return new File(dir, prefix + "new");
+    }
+
+    /**
+     * @return the size of a segment, in bytes
+     */
+    public synchronized long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @return the number of segments that hold part of the log
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of segments kept for reuse
+     */
+    public synchronized int getSpareCount() {
+        return spares.size();
+    }
+
+    /**
+     * @return the LSN just past the last byte written
+     */
+    public long end() {
+        return end;
+    }
+
+    /**
+     * Sets the end of the log, once it is known: the segments after the
+     * one it falls in become spares.
+     */
+    public synchronized void setEnd(long end) throws IOException {
+        this.end = end;
+        long last = end - end % segmentSize;
+        List<Long> after = new ArrayList<Long>(segments.tailMap(last, false).keySet());
+        for (long start : after) {
+            retire(start);
+        }
+    }
+
+    /**
+     * Starts the log over: every segment becomes a spare.
+     *
+     * @param segmentSize the size of the segments of the new log
+     * @return the LSN the new log starts at, past any LSN of the old one, so
+     * that no record left in a spare has an LSN of the new log
+     */
+    public long reset(long segmentSize) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                List<Long> all = new ArrayList<Long>(segments.keySet());
+                for (long start : all) {
+                    retire(start);
+                }
+                if (segmentSize != this.segmentSize) {
+                    for (File spare : spares) {
+                        spare.delete();
+                    }
+                    spares.clear();
+                    this.segmentSize = segmentSize;
+                }
+                unforced.clear();
+                long start = 0;
+                if (highestStart >= 0) {
+                    start = (highestStart / segmentSize + 1) * segmentSize;
+                }
+                end = start;
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Recycles the segments that hold only LSNs before the specified one.
+     * The segment the log ends in is always kept.
+     *
+     * @param lsn the first LSN that is still needed
+     * @return the number of segments recycled
+     */
+    public int truncate(long lsn) throws IOException {
+        synchronized (forceLock) {
+            synchronized (this) {
+                long keep = Math.min(lsn, end);
+                List<Long> old = new ArrayList<Long>(segments.headMap(keep - keep % segmentSize, false).keySet());
+                for (long start : old) {
+                    retire(start);
+                }
+                return old.size();
+            }
+        }
+    }
+
+    // closes a segment and keeps it as a spare, or deletes it
+    private void retire(long start) throws IOException {
+        RandomAccessFile segment = segments.remove(start);
+        unforced.remove(segment.getChannel());
+        segment.close();
+        File f = file(start);
+        if (spares.size() < MAX_SPARES) {
+            spares.add(f);
+        } else {
+            f.delete();
+        }
+    }
+
+    /**
+     * @return the segment that holds the specified LSN, or null if there is
+     * none and create is false
+     */
+    private synchronized FileChannel segmentFor(long lsn, boolean create) throws IOException {
+        long start = lsn - lsn % segmentSize;
+        RandomAccessFile segment = segments.get(start);
+        if (segment != null || !create) {
+            return segment == null ? null : segment.getChannel();
+        }
+
+        File f = file(start);
+        if (deleteOnExit) {
+            f.deleteOnExit();
+        }
+        File spare = spares.poll();
+        if (spare == null || !spare.renameTo(f)) {
+            if (spare != null) {
+                spare.delete();
+            }
+            File temp = tempFile();
+            preallocate(temp);
+            if (!temp.renameTo(f)) {
+                temp.delete();
+                throw new IOException("could not create log segment " + f);
+            }
+        }
+        syncDirectory();
+        segment = new RandomAccessFile(f, "rw");
+        segments.put(start, segment);
+        highestStart = Math.max(highestStart, start);
+        return segment.getChannel();
+    }
+
+    private void preallocate(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(ZERO_CHUNK, segmentSize));
+            long position = 0;
+            while (position < segmentSize) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), segmentSize - position));
+                while (zeros.hasRemaining()) {
+                    position += channel.write(zeros, position);
+                }
+            }
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // makes the names of new segments durable, where the platform allows it
+    private void syncDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // not supported here, e.g. on Windows
+        }
+    }
+
+    /**
+     * Writes the bytes remaining in src at the specified LSN, creating
+     * segments as needed.
+     *
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer src, long lsn) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            FileChannel channel = segmentFor(lsn, true);
+            long offset = lsn % segmentSize;
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + (int) Math.min(src.remaining(), segmentSize - offset));
+            int length = chunk.remaining();
+            while (chunk.hasRemaining()) {
+                offset += channel.write(chunk, offset);
+            }
+            synchronized (this) {
+                unforced.add(channel);
+                end = Math.max(end, lsn + length);
+            }
+            src.position(src.position() + length);
+            lsn += length;
+            written += length;
+        }
+        return written;
+    }
+
+    /**
+     * Reads into dst from the specified LSN, without crossing into the next
+     * segment.
+     *
+     * @return the number of bytes read, or -1 if no segment holds the LSN
+     */
+    public int read(ByteBuffer dst, long lsn) throws IOException {
+        FileChannel channel = segmentFor(lsn, false);
+        if (channel == null) {
+            return -1;
+        }
+        long offset = lsn % segmentSize;
+        ByteBuffer chunk = dst.duplicate();
+        chunk.limit(chunk.position() + (int) Math.min(dst.remaining(), segmentSize - offset));
+        int read = channel.read(chunk, offset);
+        if (read > 0) {
+            dst.position(dst.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * Forces the segments written since the last force to disk.  Only
+     * their data is forced: their length never changes.
+     */
+    public void force() throws IOException {
+        synchronized (forceLock) {
+            List<FileChannel> toForce;
+            synchronized (this) {
+                toForce = new ArrayList<FileChannel>(unforced);
+                unforced.clear();
+            }
+            for (int i = 0; i < toForce.size(); i++) {
+                try {
+                    toForce.get(i).force(false);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        unforced.addAll(toForce.subList(i, toForce.size()));
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the LSN just past the end of the last segment
+     */
+    synchronized long capacityEnd() {
+        return segments.isEmpty() ? end : segments.lastKey() + segmentSize;
+    }
+
+    /**
+     * @param pastEnd whether the reader may read past the end of the log,
+     *                up to the end of the last segment
+     * @return a reader of the log, positioned at its end
+     */
+    public Reader reader(boolean pastEnd) {
+        return new Reader(this, pastEnd);
+    }
+
+    public synchronized void close() throws IOException {
+        for (RandomAccessFile segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        unforced.clear();
+    }
+
+    /**
+     * Reads the log from any LSN up to its end.  Reading a record that is
+     * not all there throws an EOFException.
+     * <p/>
+     * The log is read through a window of READ_WINDOW bytes, so reading a
+     * value takes a copy out of memory rather than a system call.  The
+     * window is refilled after a position when reading forward, and before
+     * it when reading backward (following prevLSNs, or undoing in LSN
+     * order), so both directions take one read per window.  The log before
+     * its end never changes, so the window never has to be dropped.
+     */
+    public static class Reader extends DataInputStream {
+
+        private Reader(LogSegments segments, boolean pastEnd) {
+            super(new Input(segments, pastEnd));
+        }
+
+        private Input input() {
+            return (Input) in;
+        }
+
+        public void seek(long lsn) {
+            input().position = lsn;
+        }
+
+        public long getFilePointer() {
+            return input().position;
+        }
+
+        /**
+         * @return the LSN just past the last byte that can be read
+         */
+        public long length() {
+            return input().limit();
+        }
+    }
+
+    private static class Input extends InputStream {
+        private final LogSegments segments;
+        private final boolean pastEnd;
+        private final byte[] window = new byte[READ_WINDOW];
+        private long windowStart;       // LSN of window[0]
+        private int windowLength;       // bytes of the window that hold the log
+        long position;
+
+        Input(LogSegments segments, boolean pastEnd) {
+            this.segments = segments;
+            this.pastEnd = pastEnd;
+            this.position = segments.end();
+        }
+
+        long limit() {
+            return pastEnd ? segments.capacityEnd() : segments.end();
+        }
+
+        // makes the window hold the position; false if no segment holds it
+        private boolean inWindow() throws IOException {
+            if (position >= windowStart && position < windowStart + windowLength) {
+                return true;
+            }
+            if (windowLength > 0 && position < windowStart && position >= windowStart - window.length) {
+                // reading backward: fill up to where the window started
+                if (fill(windowStart - window.length, position)) {
+                    return true;
+                }
+            }
+            return fill(position, position);
+        }
+
+        private boolean fill(long start, long needed) throws IOException {
+            start = Math.max(0, start);
+            ByteBuffer dst = ByteBuffer.wrap(window, 0, (int) Math.min(window.length, limit() - start));
+            long lsn = start;
+            while (dst.hasRemaining()) {
+                int n = segments.read(dst, lsn);
+                if (n <= 0) {
+                    break;
+                }
+                lsn += n;
+            }
+            windowStart = start;
+            windowLength = dst.position();
+            return needed >= windowStart && needed < windowStart + windowLength;
+        }
+
+        public int read() throws IOException {
+            if (position >= limit() || !inWindow()) {
+                return -1;
+            }
+            return window[(int) (position++ - windowStart)] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = limit() - position;
+            if (remaining <= 0 || !inWindow()) {
+                return -1;
+            }
+            int offset = (int) (position - windowStart);
+            int n = (int) Math.min(Math.min(len, remaining), windowLength - offset);
+            System.arraycopy(window, offset, b, off, n);
+            position += n;
+            return n;
+        }
+
+        public int available() {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, limit() - position));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The policy remembers the
+ * times of the last K references to each page and evicts the page whose K-th
+ * most recent reference is furthest in the past.  Pages referenced fewer than
+ * K times count as infinitely old, so pages touched once by a scan go before
+ * pages that are used repeatedly; ties are broken by plain LRU.
+ * <p/>
+ * Reference history is retained for a while after a page is evicted, so a
+ * page that comes back soon is recognized as hot.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    /**
+     * Reference history of one page; history[0] is the most recent
+     * reference and a 0 entry means "no such reference".
+     */
+    private static class History {
+        final PageId pid;
+        final long[] history;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.history = new long[k];
+        }
+
+        long kth() {
+            return history[history.length - 1];
+        }
+
+        long last() {
+            return history[0];
+        }
+
+        void reference(long now) {
+            System.arraycopy(history, 0, history, 1, history.length - 1);
+            history[0] = now;
+        }
+    }
+
+    /**
+     * Orders resident pages from best to worst victim.  Reference times are
+     * unique, so no two pages compare equal.
+     */
+    private static final Comparator<History> VICTIM_ORDER = new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kth() != b.kth()) {
+                return a.kth() < b.kth() ? -1 : 1;
+            }
+            if (a.last() != b.last()) {
+                return a.last() < b.last() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final int k;
+    private final HashMap<PageId, History> resident;
+    private final TreeSet<History> byAge;
+    private final LinkedHashMap<PageId, History> retained;
+    private long clock;
+
+    /**
+     * @param capacity the number of frames managed; history of up to this
+     *                 many evicted pages is retained
+     * @param k        the number of references remembered per page
+     */
+    public LruKPolicy(final int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        resident = new HashMap<PageId, History>(capacity * 2);
+        byAge = new TreeSet<History>(VICTIM_ORDER);
+        retained = new LinkedHashMap<PageId, History>(capacity * 2) {
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public void recordAccess(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            byAge.remove(h);
+            h.reference(++clock);
+            byAge.add(h);
+        }
+    }
+
+    public boolean recordMiss(PageId pid) {
+        // the history is kept in retained, by page
+        return false;
+    }
+
+    public void recordInsert(PageId pid, boolean frequent) {
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.reference(++clock);
+        resident.put(pid, h);
+        byAge.add(h);
+    }
+
+    public void recordRemove(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            byAge.remove(h);
+        }
+    }
+
+    public PageId chooseVictim(Evictable evictable) {
+        Iterator<History> it = byAge.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.canEvict(h.pid)) {
+                it.remove();
+                resident.remove(h.pid);
+                retained.put(h.pid, h);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "LRU-" + k;
+    }
+}
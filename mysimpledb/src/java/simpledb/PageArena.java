@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A block of off-heap memory carved into page-sized frames.  The memory is
+ * allocated once, as a few large direct ByteBuffers (a single ByteBuffer is
+ * limited to 2GB), and is not scanned or moved by the garbage collector, so
+ * the BufferPool can hold many pages without growing the Java heap.
+ *
+ * @see BufferPool
+ */
+public class PageArena {
+
+    /**
+     * Largest single allocation, in bytes.
+     */
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int pagesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final int numPages;
+
+    /**
+     * Allocates room for numPages pages of pageSize bytes each.
+     */
+    public PageArena(int numPages, int pageSize) {
+        this.pageSize = pageSize;
+        this.numPages = numPages;
+        pagesPerChunk = Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        chunks = new ByteBuffer[(numPages + pagesPerChunk - 1) / pagesPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            int pages = Math.min(pagesPerChunk, numPages - i * pagesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(pages * pageSize);
+        }
+    }
+
+    /**
+     * @return a view of the memory of frame i; the view's capacity is one page
+     */
+    public ByteBuffer frame(int i) {
+        if (i < 0 || i >= numPages) {
+            throw new IndexOutOfBoundsException("frame " + i + " of " + numPages);
+        }
+        ByteBuffer chunk = chunks[i / pagesPerChunk].duplicate();
+        int offset = (i % pagesPerChunk) * pageSize;
+        chunk.position(offset);
+        chunk.limit(offset + pageSize);
+        return chunk.slice();
+    }
+
+    /**
+     * @return the size of the arena in bytes
+     */
+    public long capacity() {
+        return (long) numPages * pageSize;
+    }
+}
@@ -48,9 +48,7 @@ public class RecordId implements Serializable {
     public boolean equals(Object o) {
         if (o instanceof RecordId){
         	RecordId obj = (RecordId) o;
-        	if (obj.hashCode() == this.hashCode()){
-        		return true;
-        	}
+        	return obj.tupleNum == tupleNum && obj.pgId.equals(pgId);
         }
         return false;
     }
@@ -63,9 +61,7 @@ public class RecordId implements Serializable {
      */
     @Override
     public int hashCode() {
-        String code = new String();
-        code = pgId + " " + tupleNum;
-        return code.hashCode();
+        return 31 * pgId.hashCode() + tupleNum;
     }
 
 }
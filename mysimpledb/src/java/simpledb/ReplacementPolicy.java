@@ -0,0 +1,98 @@
+package simpledb;
+
+/**
+ * Decides which page a buffer pool shard gives up when it needs a frame.
+ * <p/>
+ * Each shard of the BufferPool owns one policy instance and only calls it
+ * while holding the shard's latch, so implementations need no locking of
+ * their own.  The policy tracks resident pages by PageId and may keep
+ * history about pages that have already been evicted.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy which resident pages may currently be evicted (e.g.
+     * not dirty and not being read from disk).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * The available policies, used to pick one when creating a BufferPool.
+     */
+    public enum Kind {
+        CLOCK {
+            public ReplacementPolicy create(int capacity) {
+                return new ClockPolicy(capacity);
+            }
+        },
+        LRU_K {
+            public ReplacementPolicy create(int capacity) {
+                return new LruKPolicy(capacity, LruKPolicy.DEFAULT_K);
+            }
+        },
+        TWO_Q {
+            public ReplacementPolicy create(int capacity) {
+                return new TwoQPolicy(capacity);
+            }
+        },
+        ARC {
+            public ReplacementPolicy create(int capacity) {
+                return new ArcPolicy(capacity);
+            }
+        };
+
+        /**
+         * @param capacity the number of frames the policy manages
+         * @return a new, empty policy of this kind
+         */
+        public abstract ReplacementPolicy create(int capacity);
+    }
+
+    /**
+     * Called when a request finds the page already resident.
+     */
+    public void recordAccess(PageId pid);
+
+    /**
+     * Called when a request misses, before a frame is found for the page
+     * (and so before chooseVictim, if the shard is full).  If no victim
+     * could be found, the request is repeated once some pages have been
+     * written back, so a policy must tolerate repeated calls for the same
+     * page.
+     * <p/>
+     * The page is read outside the shard's latch, so other misses may be
+     * recorded before it is inserted.  Whatever the policy learns about
+     * the page here is therefore returned to the caller, which hands it
+     * back to recordInsert, rather than kept in the policy.
+     *
+     * @return true if the page's history (e.g. a ghost entry) says it
+     * should be inserted as part of the working set; the caller keeps true
+     * across repeated calls for the same request
+     */
+    public boolean recordMiss(PageId pid);
+
+    /**
+     * Called once a page missed by recordMiss has been made resident.
+     *
+     * @param frequent what recordMiss returned for the request
+     */
+    public void recordInsert(PageId pid, boolean frequent);
+
+    /**
+     * Called when a resident page leaves the pool without being chosen as a
+     * victim, e.g. when it is discarded or its read failed.
+     */
+    public void recordRemove(PageId pid);
+
+    /**
+     * Picks a resident page to evict and stops tracking it as resident.
+     *
+     * @param evictable which of the resident pages may be chosen
+     * @return the page to evict, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Evictable evictable);
+}
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.Random;
+
+/**
+ * Compares the hit ratios of the buffer pool replacement policies on a mixed
+ * workload: short transactions that mostly touch a hot set of pages,
+ * interrupted now and then by a sequential scan of the whole table.  A
+ * policy that is not scan resistant loses the hot set to every scan.
+ * <p/>
+ * Usage: java simpledb.ReplacementPolicyBenchmark [poolPages] [tablePages] [hotPages]
+ */
+public class ReplacementPolicyBenchmark {
+
+    private static final int REQUESTS = 200000;
+    private static final int SCAN_EVERY = 5000;
+    private static final double HOT_FRACTION = 0.9;
+
+    public static void main(String[] args) throws Exception {
+        int poolPages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int tablePages = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        int hotPages = args.length > 2 ? Integer.parseInt(args[2]) : poolPages / 2;
+
+        HeapFile table = BufferPoolBenchmark.createTable(tablePages);
+        try {
+            System.out.println(poolPages + " page pool, " + tablePages + " page table, "
+                    + hotPages + " hot pages, a full scan every " + SCAN_EVERY + " requests");
+            System.out.println(String.format("%-8s %10s %10s", "policy", "overall", "hot set"));
+            for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+                run(table, new BufferPool(poolPages, BufferPool.defaultShards(poolPages), kind), hotPages);
+            }
+        } finally {
+            table.getFile().delete();
+        }
+    }
+
+    private static void run(HeapFile table, BufferPool bp, int hotPages) throws DbException {
+        Random rand = new Random(0);
+        int pages = table.numPages();
+        long hotHits = 0;
+        long hotRequests = 0;
+
+        for (int i = 1; i <= REQUESTS; i++) {
+            if (i % SCAN_EVERY == 0) {
+                for (int pgNo = 0; pgNo < pages; pgNo++) {
+                    bp.fetchPage(new HeapPageId(table.getId(), pgNo));
+                }
+            }
+            if (rand.nextDouble() < HOT_FRACTION) {
+                long before = bp.getHitCount();
+                bp.fetchPage(new HeapPageId(table.getId(), rand.nextInt(hotPages)));
+                hotHits += bp.getHitCount() - before;
+                hotRequests++;
+            } else {
+                bp.fetchPage(new HeapPageId(table.getId(), rand.nextInt(pages)));
+            }
+        }
+        System.out.println(String.format("%-8s %9.1f%% %9.1f%%", bp.getReplacementPolicy(),
+                100 * bp.getHitRatio(), 100.0 * hotHits / hotRequests));
+    }
+}
@@ -8,11 +8,51 @@ import java.io.*;
  */
 
 public class Transaction {
+
+    /**
+     * How a transaction keeps out of the way of the others.
+     */
+    public enum Mode {
+        /** locks what it reads and writes (two-phase locking) */
+        LOCKING,
+        /**
+         * reads a snapshot of the data as committed when it starts, takes no
+         * locks, and may not change anything (see BufferPool.beginSnapshot)
+         */
+        SNAPSHOT,
+        /**
+         * reads like SNAPSHOT, writes like LOCKING, and is validated at
+         * commit (see BufferPool.beginOptimistic)
+         */
+        OPTIMISTIC
+    }
+
     private final TransactionId tid;
+    private final Mode mode;
     volatile boolean started = false;
 
     public Transaction() {
+        this(Mode.LOCKING);
+    }
+
+    /**
+     * @param readOnly if true, the transaction runs in SNAPSHOT mode
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? Mode.SNAPSHOT : Mode.LOCKING);
+    }
+
+    public Transaction(Mode mode) {
         tid = new TransactionId();
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isReadOnly() {
+        return mode == Mode.SNAPSHOT;
     }
 
     /**
@@ -20,6 +60,14 @@ public class Transaction {
      */
     public void start() {
         started = true;
+        if (mode == Mode.SNAPSHOT) {
+            // nothing to log or undo
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
+        if (mode == Mode.OPTIMISTIC) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -33,8 +81,19 @@ public class Transaction {
 
     /**
      * Finish the transaction
+     *
+     * @throws TransactionAbortedException if an optimistic transaction fails
+     *                                     validation; it has been aborted
      */
-    public void commit() throws IOException {
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && mode == Mode.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                abort();
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -51,20 +110,11 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);  // force policy, drop this as challenge problem
-                Database.getLogFile().logCommit(tid);
-            }
-
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // writes the commit / abort record and releases the locks.  A
+            // commit logs the dirty pages but leaves them in the buffer pool
+            // (NO FORCE); an abort discards them and rolls back any that were
+            // written out early
+            Database.getBufferPool().transactionComplete(tid, !abort);
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
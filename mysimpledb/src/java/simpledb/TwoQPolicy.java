@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The full 2Q replacement algorithm (Johnson and Shasha).  A page read for
+ * the first time enters A1in, a small FIFO.  If it is evicted from there its
+ * id is remembered in A1out, a FIFO of ghost entries; only a page that is
+ * requested again while in A1out is admitted to Am, the LRU list holding the
+ * working set.  Pages read once by a scan therefore pass through A1in without
+ * disturbing Am.
+ * <p/>
+ * All three queues are kept oldest first.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * Uses the sizes recommended by the paper: A1in gets a quarter of the
+     * frames and A1out remembers half as many pages as there are frames.
+     */
+    public TwoQPolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param capacity the number of frames managed
+     * @param maxIn    the number of frames A1in may use before it is preferred
+     *                 for eviction
+     * @param maxOut   the number of ghost entries kept in A1out
+     */
+    public TwoQPolicy(int capacity, int maxIn, int maxOut) {
+        if (maxIn < 1 || maxIn > capacity || maxOut < 1) {
+            throw new IllegalArgumentException("bad 2Q queue sizes for " + capacity + " frames");
+        }
+        this.maxIn = maxIn;
+        this.maxOut = maxOut;
+    }
+
+    public void recordAccess(PageId pid) {
+        // hits in A1in are deliberately ignored: they are likely correlated
+        // references by the same scan or transaction
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public boolean recordMiss(PageId pid) {
+        // take the ghost out now, before making room for the page pushes
+        // another ghost into A1out
+        return a1out.remove(pid);
+    }
+
+    public void recordInsert(PageId pid, boolean frequent) {
+        if (frequent) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void recordRemove(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(Evictable evictable) {
+        boolean fromIn = a1in.size() > maxIn || am.isEmpty();
+        PageId victim = evictFrom(fromIn ? a1in : am, evictable);
+        if (victim == null) {
+            fromIn = !fromIn;
+            victim = evictFrom(fromIn ? a1in : am, evictable);
+        }
+        if (victim != null && fromIn) {
+            a1out.add(victim);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Removes and returns the oldest evictable page of a queue.
+     */
+    private static PageId evictFrom(LinkedHashSet<PageId> queue, Evictable evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public String toString() {
+        return "2Q";
+    }
+}
@@ -0,0 +1,306 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps what snapshot transactions need to read the committed data as of
+ * the moment they started, without taking locks.
+ * <p/>
+ * Every change a transaction makes to a tuple of a HeapPage is recorded
+ * here with the slot's bytes from before the change (its before image),
+ * while the page's monitor is held.  Commits are numbered: a snapshot taken
+ * at commit number s sees the changes of transactions that committed at or
+ * before s, and of no others.  To read a page as of a snapshot, the page is
+ * copied under its monitor and the slots changed by transactions that are
+ * still running, or that committed after s, are put back to their before
+ * images, newest change first.  Slots no such transaction touched already
+ * hold what the snapshot should see.
+ * <p/>
+ * Optimistic transactions read the same way, but see their own changes, and
+ * the pages they read are remembered.  At commit such a transaction is valid
+ * if no other transaction committed a change to one of those pages after it
+ * started.  A valid transaction's commit is only numbered once its COMMIT
+ * record is on disk, but until then its changes count against later
+ * validations as if committed, so that of two transactions that read what
+ * the other wrote, the second to validate fails.
+ * <p/>
+ * A committed change is dropped once no running snapshot or optimistic
+ * transaction started before its commit, and an aborted one once its
+ * transaction has been rolled back.
+ * Only changes made through HeapPage's transactional insertTuple and
+ * deleteTuple are recorded; the others are not undone for snapshots.
+ * <p/>
+ * The changes to each page are kept in one of STRIPES stripes, chosen by
+ * the page's id, so recording a change or copying a page only takes that
+ * stripe's monitor.  This store's own monitor is taken once or twice per
+ * transaction, to start it and to number or drop its changes; a snapshot
+ * is always taken between two numberings, never during one.
+ * <p/>
+ * Lock order: a page's monitor or this store's, then a stripe's.
+ */
+class VersionStore {
+
+    /**
+     * Number of stripes the changes are split into; a power of two.
+     */
+    static final int STRIPES = 16;
+
+    // one change to one slot; commit is 0 while its transaction runs.  It is
+    // set under the store's monitor and read under the stripe's
+    private static class Change {
+        final TransactionId tid;
+        final PageId pid;
+        final int slot;
+        final byte[] before; // null if the slot was empty
+        volatile long commit;
+
+        Change(TransactionId tid, PageId pid, int slot, byte[] before) {
+            this.tid = tid;
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+        }
+    }
+
+    // the changes to the pages of one stripe that a snapshot may have to
+    // undo, oldest first; guarded by the stripe's monitor
+    private static class Stripe {
+        final HashMap<PageId, ArrayList<Change>> changes = new HashMap<PageId, ArrayList<Change>>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // the number of the last commit
+    private long clock = 0;
+
+    // the changes of each running transaction; each list is guarded by its
+    // own monitor
+    private final ConcurrentHashMap<TransactionId, ArrayList<Change>> running = new ConcurrentHashMap<TransactionId, ArrayList<Change>>();
+
+    // committed changes still kept for a snapshot, in commit order
+    private final LinkedList<Change> committed = new LinkedList<Change>();
+
+    // the commit number each snapshot or optimistic transaction reads as of;
+    // looked up on every page request, so it is read without this store's
+    // monitor
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+
+    // the pages each optimistic transaction has read
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> reads = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
+    // optimistic transactions that passed validation and are committing
+    private final HashSet<TransactionId> validated = new HashSet<TransactionId>();
+
+    VersionStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(PageId pid) {
+        int h = pid.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Records that a transaction changed a slot.  Must hold the page's
+     * monitor from before the change until this returns.
+     *
+     * @param before the bytes the slot held before the change, or null if
+     *               it was empty
+     */
+    void changed(TransactionId tid, RecordId rid, byte[] before) {
+        Change change = new Change(tid, rid.getPageId(), rid.tupleno(), before);
+        Stripe stripe = stripe(change.pid);
+        synchronized (stripe) {
+            ArrayList<Change> onPage = stripe.changes.get(change.pid);
+            if (onPage == null) {
+                onPage = new ArrayList<Change>();
+                stripe.changes.put(change.pid, onPage);
+            }
+            onPage.add(change);
+        }
+        ArrayList<Change> ofTxn = running.get(tid);
+        if (ofTxn == null) {
+            ofTxn = new ArrayList<Change>();
+            ArrayList<Change> other = running.putIfAbsent(tid, ofTxn);
+            if (other != null) {
+                ofTxn = other;
+            }
+        }
+        synchronized (ofTxn) {
+            ofTxn.add(change);
+        }
+    }
+
+    /**
+     * Numbers the transaction's commit; snapshots begun from now on see its
+     * changes.
+     */
+    synchronized void committed(TransactionId tid) {
+        validated.remove(tid);
+        ArrayList<Change> ofTxn = running.remove(tid);
+        if (ofTxn == null) {
+            return;
+        }
+        clock++;
+        synchronized (ofTxn) {
+            for (Change change : ofTxn) {
+                change.commit = clock;
+                committed.add(change);
+            }
+        }
+        prune();
+    }
+
+    /**
+     * Forgets the changes of a transaction that has been rolled back.
+     */
+    synchronized void aborted(TransactionId tid) {
+        validated.remove(tid);
+        ArrayList<Change> ofTxn = running.remove(tid);
+        if (ofTxn != null) {
+            synchronized (ofTxn) {
+                for (Change change : ofTxn) {
+                    drop(change);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a snapshot transaction, which reads the data as committed now.
+     */
+    synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /**
+     * Starts an optimistic transaction, which reads the data as committed
+     * now and is validated at commit.
+     */
+    synchronized void beginOptimistic(TransactionId tid) {
+        snapshots.put(tid, clock);
+        reads.put(tid, Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>()));
+    }
+
+    /**
+     * Ends a snapshot or optimistic transaction; does nothing for others.
+     */
+    synchronized void end(TransactionId tid) {
+        reads.remove(tid);
+        if (snapshots.remove(tid) != null) {
+            prune();
+        }
+    }
+
+    /**
+     * @return true if the transaction is a (read-only) snapshot transaction
+     */
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid) && !reads.containsKey(tid);
+    }
+
+    boolean isOptimistic(TransactionId tid) {
+        return reads.containsKey(tid);
+    }
+
+    /**
+     * Validates an optimistic transaction.  If it is valid its changes count
+     * as committed for the validations that follow, though snapshots only
+     * see them once committed numbers its commit.
+     *
+     * @return false if another transaction committed, or validated, a change
+     *         to a page it read after it started; it must then be aborted
+     */
+    synchronized boolean validate(TransactionId tid) {
+        long start = snapshots.get(tid);
+        for (PageId pid : reads.get(tid)) {
+            Stripe stripe = stripe(pid);
+            synchronized (stripe) {
+                ArrayList<Change> onPage = stripe.changes.get(pid);
+                if (onPage == null) {
+                    continue;
+                }
+                for (Change change : onPage) {
+                    if (change.commit > start
+                            || (change.commit == 0 && !change.tid.equals(tid) && validated.contains(change.tid))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        validated.add(tid);
+        return true;
+    }
+
+    /**
+     * Copies a page as the snapshot or optimistic transaction should see it,
+     * and remembers that an optimistic one read it.  Must hold the page's
+     * monitor.
+     */
+    HeapPage asOf(HeapPage page, TransactionId tid) throws IOException {
+        long snapshot = snapshots.get(tid);
+        Set<PageId> read = reads.get(tid);
+        if (read != null) {
+            read.add(page.getId());
+        }
+        HeapPage copy = new HeapPage(page.getId(), page.getPageData());
+        Stripe stripe = stripe(page.getId());
+        synchronized (stripe) {
+            ArrayList<Change> onPage = stripe.changes.get(page.getId());
+            if (onPage != null) {
+                for (int i = onPage.size() - 1; i >= 0; i--) {
+                    Change change = onPage.get(i);
+                    if (change.tid.equals(tid)) {
+                        continue;
+                    }
+                    if (change.commit == 0 || change.commit > snapshot) {
+                        if (change.before == null) {
+                            copy.clearSlot(change.slot);
+                        } else {
+                            copy.setSlot(change.slot, change.before);
+                        }
+                    }
+                }
+            }
+        }
+        return copy;
+    }
+
+    // drops the committed changes every running snapshot already sees
+    private void prune() {
+        long oldest = clock;
+        for (long snapshot : snapshots.values()) {
+            oldest = Math.min(oldest, snapshot);
+        }
+        Iterator<Change> it = committed.iterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.commit > oldest) {
+                break;
+            }
+            it.remove();
+            drop(change);
+        }
+    }
+
+    private void drop(Change change) {
+        Stripe stripe = stripe(change.pid);
+        synchronized (stripe) {
+            ArrayList<Change> onPage = stripe.changes.get(change.pid);
+            onPage.remove(change);
+            if (onPage.isEmpty()) {
+                stripe.changes.remove(change.pid);
+            }
+        }
+    }
+}
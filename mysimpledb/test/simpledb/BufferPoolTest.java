@@ -0,0 +1,335 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends TestUtil.CreateHeapFile {
+    private static final int POOL_PAGES = 3;
+
+    private PageId[] pids;
+    private TransactionId tid;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // create a heap file with six pages
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < 504 * 6; ++i) {
+            Database.getBufferPool().insertTuple(loader, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(6, empty.numPages());
+        Database.getBufferPool().transactionComplete(loader);
+        Database.getBufferPool().flushAllPages();
+
+        pids = new PageId[6];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new HeapPageId(empty.getId(), i);
+        }
+        tid = new TransactionId();
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    /**
+     * A page that is already resident is returned without rereading it.
+     */
+    @Test
+    public void hitReturnsResidentPage() throws Exception {
+        Page first = bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        Page again = bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertSame(first, again);
+        assertEquals(1, bp.getNumberOfPages());
+    }
+
+    /**
+     * Scanning more pages than fit never grows the pool past its capacity.
+     */
+    @Test
+    public void evictionKeepsPoolBounded() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            for (PageId pid : pids) {
+                bp.getPage(tid, pid, Permissions.READ_ONLY);
+                assertTrue(bp.getNumberOfPages() <= POOL_PAGES);
+            }
+        }
+        assertEquals(POOL_PAGES, bp.getNumberOfPages());
+    }
+
+    /**
+     * The clock gives recently referenced pages a second chance: after a
+     * page is evicted, the replacement does not immediately push out the
+     * page that was just loaded.
+     */
+    @Test
+    public void clockSkipsReferencedPages() throws Exception {
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[1], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[2], Permissions.READ_ONLY);
+
+        // pool is full; loading a fourth page sweeps once and evicts pids[0]
+        Page p3 = bp.getPage(tid, pids[3], Permissions.READ_ONLY);
+
+        // touch p3 again, then force another eviction
+        assertSame(p3, bp.getPage(tid, pids[3], Permissions.READ_ONLY));
+        bp.getPage(tid, pids[4], Permissions.READ_ONLY);
+        assertSame(p3, bp.getPage(tid, pids[3], Permissions.READ_ONLY));
+    }
+
+    /**
+     * discardPage frees the frame so that a later miss does not need to evict.
+     */
+    @Test
+    public void discardFreesFrame() throws Exception {
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[1], Permissions.READ_ONLY);
+        bp.discardPage(pids[0]);
+        assertEquals(1, bp.getNumberOfPages());
+        bp.discardPage(pids[0]); // not resident, no effect
+        assertEquals(1, bp.getNumberOfPages());
+    }
+
+    /**
+     * A pinned page stays resident while other pages come and go, and can be
+     * evicted again once it is unpinned.
+     */
+    @Test
+    public void pinnedPageIsNotEvicted() throws Exception {
+        Page pinned = bp.fetchPage(pids[0], true);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < pids.length; i++) {
+                bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+            }
+            assertSame(pinned, bp.getPage(tid, pids[0], Permissions.READ_ONLY));
+        }
+
+        bp.unpinPage(pinned);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < pids.length; i++) {
+                bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+            }
+        }
+        assertNotSame(pinned, bp.getPage(tid, pids[0], Permissions.READ_ONLY));
+    }
+
+    /**
+     * A sharded pool hands out the same resident pages as an unsharded one
+     * and never holds more than its total capacity.
+     */
+    @Test
+    public void shardedPool() throws Exception {
+        BufferPool sharded = new BufferPool(4, 2);
+        assertEquals(2, sharded.getNumberOfShards());
+        for (PageId pid : pids) {
+            Page p = sharded.getPage(tid, pid, Permissions.READ_ONLY);
+            assertEquals(pid, p.getId());
+            assertSame(p, sharded.getPage(tid, pid, Permissions.READ_ONLY));
+            assertTrue(sharded.getNumberOfPages() <= 4);
+        }
+    }
+
+    /**
+     * Small pools are not partitioned.
+     */
+    @Test
+    public void smallPoolHasOneShard() {
+        assertEquals(1, bp.getNumberOfShards());
+        assertEquals(1, BufferPool.defaultShards(BufferPool.MIN_PAGES_PER_SHARD * 2 - 1));
+    }
+
+    /**
+     * Every replacement policy keeps the pool bounded, and the pool counts
+     * hits and misses.
+     */
+    @Test
+    public void policiesCountHitsAndMisses() throws Exception {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            BufferPool pool = new BufferPool(POOL_PAGES, 1, kind);
+            assertEquals(kind, pool.getReplacementPolicy());
+            for (PageId pid : pids) {
+                pool.getPage(tid, pid, Permissions.READ_ONLY);
+                pool.getPage(tid, pid, Permissions.READ_ONLY);
+                assertTrue(pool.getNumberOfPages() <= POOL_PAGES);
+            }
+            assertEquals(kind.toString(), pids.length, pool.getMissCount());
+            assertEquals(kind.toString(), pids.length, pool.getHitCount());
+            assertEquals(0.5, pool.getHitRatio(), 1e-9);
+
+            pool.resetStatistics();
+            assertEquals(0, pool.getHitCount() + pool.getMissCount());
+        }
+    }
+
+    /**
+     * Pages of an off-heap pool read the same as heap pages, and a page that
+     * is still referenced after eviction keeps its contents even though its
+     * frame now holds another page.
+     */
+    @Test
+    public void offHeapPoolDetachesEvictedPages() throws Exception {
+        BufferPool pool = new BufferPool(POOL_PAGES, 1, ReplacementPolicy.Kind.CLOCK, true);
+        assertTrue(pool.isOffHeap());
+        HeapPage first = (HeapPage) pool.getPage(tid, pids[0], Permissions.READ_ONLY);
+        byte[] expected = empty.readPage(pids[0]).getPageData();
+        assertArrayEquals(expected, first.getPageData());
+
+        for (PageId pid : pids) {
+            pool.getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        Page reread = pool.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertNotSame(first, reread);
+        assertArrayEquals(expected, first.getPageData());
+        assertArrayEquals(expected, reread.getPageData());
+        assertEquals(0, first.getNumEmptySlots());
+    }
+
+    /**
+     * A page read ahead in the background is counted as a prefetch hit the
+     * first time it is requested.
+     */
+    @Test
+    public void prefetchedPageCountsAsHit() throws Exception {
+        bp.prefetchPage(pids[0]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getNumberOfPages() == 0 || bp.getPrefetchCount() == 0) {
+            assertTrue("page was not prefetched", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, bp.getPrefetchCount());
+
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        bp.getPage(tid, pids[0], Permissions.READ_ONLY);
+        assertEquals(1, bp.getPrefetchHitCount());
+        assertEquals(0, bp.getMissCount());
+    }
+
+    /**
+     * A scan with read-ahead enabled returns every tuple; small pools do not
+     * read ahead at all.
+     */
+    @Test
+    public void readAheadScan() throws Exception {
+        assertEquals(0, bp.getReadAheadPages());
+
+        BufferPool pool = Database.resetBufferPool(40);
+        pool.setReadAheadPages(4);
+        assertEquals(4, pool.getReadAheadPages());
+
+        SeqScan scan = new SeqScan(tid, empty.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * 6, count);
+        assertEquals(6, pool.getMissCount() + pool.getPrefetchHitCount());
+    }
+
+    /**
+     * Deletes the first tuple of each of the given pages on behalf of t.
+     */
+    private void deleteFirstTuples(TransactionId t, PageId... toModify) throws Exception {
+        for (PageId pid : toModify) {
+            HeapPage p = (HeapPage) bp.getPage(t, pid, Permissions.READ_WRITE);
+            bp.deleteTuple(t, p.iterator().next());
+        }
+    }
+
+    private int emptySlotsOnDisk(PageId pid) {
+        return ((HeapPage) empty.readPage(pid)).getNumEmptySlots();
+    }
+
+    /**
+     * A transaction may dirty more pages than fit in the pool: dirty pages
+     * are written back to make room, and its changes survive the commit.
+     */
+    @Test
+    public void stealWhenAllPagesDirty() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t.getId(), pids);
+        assertTrue(bp.getNumberOfPages() <= POOL_PAGES);
+        t.commit();
+        bp.flushAllPages();
+
+        for (PageId pid : pids) {
+            assertEquals(1, emptySlotsOnDisk(pid));
+        }
+    }
+
+    /**
+     * Aborting a transaction undoes the pages it had written back early.
+     */
+    @Test
+    public void abortUndoesStolenPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t.getId(), pids);
+        t.transactionComplete(true);
+
+        for (PageId pid : pids) {
+            assertEquals(0, emptySlotsOnDisk(pid));
+            assertEquals(0, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+        }
+    }
+
+    /**
+     * The pages of a transaction that logged no BEGIN record cannot be
+     * undone from the log, so they are not written back to make room, and
+     * aborting it leaves the disk as it was.
+     */
+    @Test
+    public void unloggedPagesAreNotStolen() throws Exception {
+        try {
+            deleteFirstTuples(tid, pids);
+            fail("the pool should have run out of clean pages");
+        } catch (DbException expected) {
+        }
+        bp.transactionComplete(tid, false);
+
+        for (PageId pid : pids) {
+            assertEquals(0, emptySlotsOnDisk(pid));
+            assertEquals(0, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+        }
+    }
+
+    /**
+     * The page cleaner writes back pages of a shard that is mostly dirty.
+     */
+    @Test
+    public void cleanerWritesBackDirtyPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstTuples(t.getId(), pids[0], pids[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (emptySlotsOnDisk(pids[0]) == 0 || emptySlotsOnDisk(pids[1]) == 0) {
+            assertTrue("pages were not written back", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertNull(bp.getPage(t.getId(), pids[0], Permissions.READ_ONLY).isDirty());
+        assertNull(bp.getPage(t.getId(), pids[1], Permissions.READ_ONLY).isDirty());
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
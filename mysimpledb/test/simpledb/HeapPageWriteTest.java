@@ -1,11 +1,13 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -130,6 +132,40 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Iterating a page while another thread changes it never returns a
+     * tuple that is half written or half cleared.
+     */
+    @Test
+    public void iteratorSeesWholeTuples() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 1; i <= 20000; i++) {
+                        Tuple t = Utility.getHeapTuple(new int[]{i, -i});
+                        page.insertTuple(t);
+                        page.deleteTuple(t);
+                    }
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(((IntField) t.getField(0)).getValue(), -((IntField) t.getField(1)).getValue());
+                assertTrue(((IntField) t.getField(0)).getValue() != 0);
+            }
+        }
+        writer.join();
+        assertNull(failure.get());
+    }
+
     /**
      * JUnit suite target
      */
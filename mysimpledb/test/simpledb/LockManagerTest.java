@@ -0,0 +1,451 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    /**
+     * Time to give a waiting request to (wrongly) get its lock, in ms
+     */
+    private static final int WAIT = 200;
+
+    /**
+     * Longest a granted request or a broken deadlock may take, in ms
+     */
+    private static final int PROMPT = 1000;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before
+    public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    // asks the LockManager for a lock on another thread
+    private class Grabber extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Grabber(TransactionId tid, Permissions perm) {
+            this(tid, p0, perm);
+        }
+
+        Grabber(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.getLock(tid, pid, perm);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        void await() throws InterruptedException {
+            join(PROMPT);
+            assertTrue("not granted", acquired);
+        }
+
+        void awaitAbort() throws InterruptedException {
+            join(PROMPT);
+            assertTrue("not aborted", error instanceof TransactionAbortedException);
+        }
+    }
+
+    /**
+     * A reader that arrives after a writer started waiting waits behind it,
+     * and each gets the lock in turn as it is released.
+     */
+    @Test
+    public void waitersAreGrantedInOrder() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        Grabber writer = new Grabber(tid2, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        Grabber reader = new Grabber(tid3, Permissions.READ_ONLY);
+        Thread.sleep(WAIT);
+        assertFalse(writer.acquired);
+        assertFalse(reader.acquired);
+
+        lm.releaseLocksAndRequests(tid1);
+        writer.await();
+        Thread.sleep(WAIT);
+        assertFalse(reader.acquired);
+
+        lm.releaseLocksAndRequests(tid2);
+        reader.await();
+        assertTrue(lm.holdsLock(tid3, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * An upgrade waits for the other readers to leave, ahead of the requests
+     * that came before it.
+     */
+    @Test
+    public void upgradeWaitsForOtherReaders() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        Grabber writer = new Grabber(tid3, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        Grabber upgrade = new Grabber(tid1, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        assertFalse(upgrade.acquired);
+        assertFalse(lm.holdsLock(tid1, p0, Permissions.READ_WRITE));
+
+        lm.releaseLocksAndRequests(tid2);
+        upgrade.await();
+        assertTrue(lm.holdsLock(tid1, p0, Permissions.READ_WRITE));
+        assertFalse(writer.acquired);
+
+        lm.releaseLocksAndRequests(tid1);
+        writer.await();
+    }
+
+    /**
+     * Of two readers that both want to upgrade, the second is aborted at
+     * once instead of deadlocking with the first.
+     */
+    @Test
+    public void secondUpgradeIsAborted() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        Grabber upgrade = new Grabber(tid1, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        try {
+            lm.getLock(tid2, p0, Permissions.READ_WRITE);
+            fail("second upgrade was queued");
+        } catch (TransactionAbortedException expected) {
+        }
+
+        lm.releaseLocksAndRequests(tid2);
+        upgrade.await();
+    }
+
+    /**
+     * A deadlock is broken as soon as it forms, by aborting the youngest
+     * transaction, even when an older one closes the cycle.
+     */
+    @Test
+    public void deadlockAbortsYoungest() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_WRITE);
+        lm.getLock(tid2, p1, Permissions.READ_WRITE);
+        Grabber young = new Grabber(tid2, p0, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        Grabber old = new Grabber(tid1, p1, Permissions.READ_WRITE);
+        young.awaitAbort();
+        assertFalse(old.acquired);
+
+        lm.releaseLocksAndRequests(tid2);
+        old.await();
+    }
+
+    /**
+     * A long wait that is not part of a deadlock is not given up.
+     */
+    @Test
+    public void longWaitIsNotAborted() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_WRITE);
+        Grabber writer = new Grabber(tid2, Permissions.READ_WRITE);
+        Thread.sleep(3 * LockManager.DETECT_INTERVAL_MS);
+        assertFalse(writer.acquired);
+        assertNull(writer.error);
+
+        lm.releaseLocksAndRequests(tid1);
+        writer.await();
+    }
+
+    /**
+     * Under no-wait, a request that cannot be granted at once is aborted.
+     */
+    @Test
+    public void noWaitAbortsAtOnce() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        new Grabber(tid3, Permissions.READ_WRITE).awaitAbort();
+    }
+
+    /**
+     * Under wait-die, an older transaction waits for a younger one, and a
+     * younger one asking for an older one's lock is aborted.
+     */
+    @Test
+    public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.getLock(tid1, p1, Permissions.READ_WRITE);
+        lm.getLock(tid2, p0, Permissions.READ_WRITE);
+        Grabber old = new Grabber(tid1, p0, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        assertNull(old.error);
+        new Grabber(tid2, p1, Permissions.READ_ONLY).awaitAbort();
+
+        lm.releaseLocksAndRequests(tid2);
+        old.await();
+    }
+
+    /**
+     * Under wound-wait, an older transaction aborts a younger one in its
+     * way, and a younger one waits for an older one.
+     */
+    @Test
+    public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        lm.getLock(tid1, p1, Permissions.READ_WRITE);
+        lm.getLock(tid2, p0, Permissions.READ_WRITE);
+        Grabber young = new Grabber(tid3, p1, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        assertNull(young.error);
+
+        Grabber old = new Grabber(tid1, p0, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        try {
+            lm.getLock(tid2, p1, Permissions.READ_ONLY);
+            fail("wounded transaction got another lock");
+        } catch (TransactionAbortedException expected) {
+        }
+        lm.releaseLocksAndRequests(tid2);
+        old.await();
+        assertNull(young.error);
+    }
+
+    /**
+     * Releasing a transaction's locks frees what it held and withdraws what
+     * it asked for, and leaves other transactions' locks alone.
+     */
+    @Test
+    public void releaseOnlyTouchesOwnLocks() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p1, Permissions.READ_WRITE);
+        Grabber writer = new Grabber(tid3, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+
+        lm.releaseLocksAndRequests(tid2);
+        assertFalse(lm.holdsLock(tid2, p0, Permissions.READ_ONLY));
+        assertFalse(lm.holdsLock(tid2, p1, Permissions.READ_ONLY));
+        assertTrue(lm.holdsLock(tid1, p0, Permissions.READ_ONLY));
+        Thread.sleep(WAIT);
+        assertFalse(writer.acquired);
+
+        lm.releaseLocksAndRequests(tid3);
+        writer.awaitAbort();
+        lm.releaseLocksAndRequests(tid1);
+        assertTrue(lm.requestLock(tid2, p0, Permissions.READ_WRITE));
+        assertTrue(lm.requestLock(tid2, p1, Permissions.READ_WRITE));
+    }
+
+    /**
+     * A writer waits for every reader to leave, including the ones that took
+     * their lock without queueing, and a lone reader can upgrade at once.
+     */
+    @Test
+    public void writerWaitsForReaders() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        Grabber writer = new Grabber(tid3, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        lm.releaseLocksAndRequests(tid1);
+        Thread.sleep(WAIT);
+        assertFalse(writer.acquired);
+        lm.releaseLocksAndRequests(tid2);
+        writer.await();
+        lm.releaseLocksAndRequests(tid3);
+
+        lm.getLock(tid1, p1, Permissions.READ_ONLY);
+        assertTrue(lm.requestLock(tid1, p1, Permissions.READ_WRITE));
+        assertTrue(lm.holdsLock(tid1, p1, Permissions.READ_WRITE));
+        assertFalse(lm.requestLock(tid2, p1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * An interrupted request leaves the queue, so the ones behind it are not
+     * held up.
+     */
+    @Test
+    public void interruptedRequestLeavesTheQueue() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_WRITE);
+        Grabber writer = new Grabber(tid2, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        writer.interrupt();
+        writer.awaitAbort();
+
+        lm.releaseLock(p0, tid1);
+        assertTrue(lm.requestLock(tid3, p0, Permissions.READ_WRITE));
+    }
+
+    /**
+     * The modes of a table lock go together as in the compatibility matrix,
+     * and join to the weakest mode that allows both.
+     */
+    @Test
+    public void lockModes() {
+        assertTrue(LockManager.LockMode.IS.compatibleWith(LockManager.LockMode.SIX));
+        assertTrue(LockManager.LockMode.IX.compatibleWith(LockManager.LockMode.IX));
+        assertFalse(LockManager.LockMode.S.compatibleWith(LockManager.LockMode.IX));
+        assertFalse(LockManager.LockMode.SIX.compatibleWith(LockManager.LockMode.S));
+        assertFalse(LockManager.LockMode.X.compatibleWith(LockManager.LockMode.IS));
+        assertEquals(LockManager.LockMode.SIX, LockManager.LockMode.IX.join(LockManager.LockMode.S));
+        assertEquals(LockManager.LockMode.X, LockManager.LockMode.IS.join(LockManager.LockMode.X));
+        assertTrue(LockManager.LockMode.SIX.covers(LockManager.LockMode.IX));
+        assertFalse(LockManager.LockMode.S.covers(LockManager.LockMode.IX));
+    }
+
+    /**
+     * Past the threshold a reader locks the whole table: it gives up its
+     * page locks, other readers may still come in, and writers may not.
+     */
+    @Test
+    public void manyPageLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(10);
+        for (int i = 0; i < 20; i++) {
+            lm.getLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+        }
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 30), Permissions.READ_ONLY));
+        assertFalse(lm.holdsLock(tid1, new HeapPageId(1, 30), Permissions.READ_WRITE));
+        for (LockManager.LockEntry entry : lm.getlockTable().values()) {
+            assertFalse(entry.holders.containsKey(tid1) || entry.fast.containsKey(tid1));
+        }
+
+        assertTrue(lm.requestLock(tid2, new HeapPageId(1, 30), Permissions.READ_ONLY));
+        assertFalse(lm.requestLock(tid3, new HeapPageId(1, 31), Permissions.READ_WRITE));
+        assertTrue(lm.requestLock(tid3, new HeapPageId(2, 0), Permissions.READ_WRITE));
+
+        lm.releaseLocksAndRequests(tid1);
+        assertTrue(lm.requestLock(tid3, new HeapPageId(1, 31), Permissions.READ_WRITE));
+    }
+
+    /**
+     * Writers of different pages of a table go together, but a transaction
+     * escalating to the whole table waits for them.
+     */
+    @Test
+    public void escalationWaitsForWriters() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_WRITE);
+        lm.getLock(tid2, p1, Permissions.READ_WRITE);
+        lm.releaseLocksAndRequests(tid2);
+
+        lm.setEscalationThreshold(0);
+        Grabber reader = new Grabber(tid3, p1, Permissions.READ_ONLY);
+        Thread.sleep(WAIT);
+        assertFalse(reader.acquired);
+        lm.releaseLocksAndRequests(tid1);
+        reader.await();
+        assertTrue(lm.holdsLock(tid3, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Writers of different records of a page go together, while a reader of
+     * the whole page waits for them, and so does a writer of the same record.
+     */
+    @Test
+    public void recordLocksShareAPage() throws Exception {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.getRecordLock(tid1, r0, Permissions.READ_WRITE);
+        lm.getRecordLock(tid2, r1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsRecordLock(tid2, r1, Permissions.READ_WRITE));
+        assertFalse(lm.holdsRecordLock(tid2, r0, Permissions.READ_ONLY));
+        assertFalse(lm.requestRecordLock(tid2, new RecordId(p0, 0), Permissions.READ_WRITE));
+
+        Grabber reader = new Grabber(tid3, Permissions.READ_ONLY);
+        Thread.sleep(WAIT);
+        assertFalse(reader.acquired);
+        lm.releaseLocksAndRequests(tid1);
+        Thread.sleep(WAIT);
+        assertFalse(reader.acquired);
+        assertTrue(lm.requestRecordLock(tid2, r0, Permissions.READ_WRITE));
+        lm.releaseLocksAndRequests(tid2);
+        reader.await();
+    }
+
+    /**
+     * A lock on a page covers its records.
+     */
+    @Test
+    public void pageLockCoversRecords() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_WRITE);
+        lm.getRecordLock(tid1, new RecordId(p0, 3), Permissions.READ_WRITE);
+        assertTrue(lm.holdsRecordLock(tid1, new RecordId(p0, 4), Permissions.READ_WRITE));
+        assertFalse(lm.requestRecordLock(tid2, new RecordId(p0, 4), Permissions.READ_ONLY));
+        assertTrue(lm.requestRecordLock(tid2, new RecordId(p1, 4), Permissions.READ_WRITE));
+    }
+
+    /**
+     * A writer of a record that escalates to reading the whole table keeps
+     * the intention lock on the record's page, so nobody can read the
+     * record through a lock on its page.
+     */
+    @Test
+    public void escalationKeepsIntentionOverWrittenRecord() throws Exception {
+        lm.setEscalationThreshold(2);
+        RecordId r0 = new RecordId(p0, 0);
+        lm.getRecordLock(tid1, r0, Permissions.READ_WRITE);
+        lm.getLock(tid1, p1, Permissions.READ_ONLY);  // escalates to SIX
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 5), Permissions.READ_ONLY));
+        assertTrue(lm.holdsRecordLock(tid1, r0, Permissions.READ_WRITE));
+
+        assertFalse(lm.requestLock(tid2, p0, Permissions.READ_ONLY));
+        assertFalse(lm.requestRecordLock(tid2, r0, Permissions.READ_ONLY));
+        assertTrue(lm.requestRecordLock(tid2, new RecordId(p0, 1), Permissions.READ_ONLY));
+
+        lm.releaseLocksAndRequests(tid1);
+        assertTrue(lm.requestLock(tid2, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * The entries of pages, including the ones only read without queueing,
+     * are dropped once nobody holds or waits for them, and can be locked
+     * again afterwards.
+     */
+    @Test
+    public void freeEntriesAreDropped() throws Exception {
+        lm.getLock(tid1, p0, Permissions.READ_ONLY);
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        lm.getLock(tid1, p1, Permissions.READ_WRITE);
+        Grabber writer = new Grabber(tid3, p1, Permissions.READ_WRITE);
+        Thread.sleep(WAIT);
+        assertEquals(2, lm.getlockTable().size());
+
+        lm.releaseLocksAndRequests(tid1);
+        writer.await();
+        lm.releaseLocksAndRequests(tid2);
+        assertEquals(1, lm.getlockTable().size());
+        lm.releaseLock(p1, tid3);
+        assertTrue(lm.getlockTable().isEmpty());
+
+        lm.getLock(tid2, p0, Permissions.READ_ONLY);
+        assertFalse(lm.requestLock(tid3, p0, Permissions.READ_WRITE));
+        lm.releaseLocksAndRequests(tid2);
+        lm.releaseLocksAndRequests(tid3);
+        assertTrue(lm.getlockTable().isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest {
+    private static final int HEADER = 8;
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(HEADER);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    /**
+     * A record of the given length whose first ints say who wrote it.
+     */
+    private static byte[] record(int writer, int seq, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer.wrap(bytes).putInt(writer).putInt(seq);
+        return bytes;
+    }
+
+    /**
+     * Records get increasing LSNs that are their offsets in the file, and
+     * each is followed by its LSN.
+     */
+    @Test
+    public void lsnsAreFileOffsets() throws IOException {
+        LogBuffer buffer = new LogBuffer(raf.getChannel(), HEADER, 1024);
+        long first = buffer.append(record(0, 0, 20));
+        long second = buffer.append(record(0, 1, 12));
+        assertEquals(HEADER, first);
+        assertEquals(first + 20 + LogFile.LONG_SIZE, second);
+        assertEquals(second + 12 + LogFile.LONG_SIZE, buffer.end());
+
+        buffer.force(second);
+        assertEquals(buffer.end(), raf.length());
+        raf.seek(first + 20);
+        assertEquals(first, raf.readLong());
+        raf.seek(second);
+        assertEquals(0, raf.readInt());
+        assertEquals(1, raf.readInt());
+        buffer.close();
+    }
+
+    /**
+     * Concurrent appenders, with a ring small enough to wrap around many
+     * times, leave every record intact and contiguous in the file.
+     */
+    @Test
+    public void concurrentAppendsWrapAround() throws Exception {
+        final LogBuffer buffer = new LogBuffer(raf.getChannel(), HEADER, 256);
+        final int writers = 4;
+        final int records = 200;
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int writer = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int seq = 0; seq < records; seq++) {
+                            buffer.append(record(writer, seq, 8 + (seq % 5) * 4));
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        buffer.close();
+
+        Set<String> seen = new HashSet<String>();
+        int[] nextSeq = new int[writers];
+        long offset = HEADER;
+        raf.seek(offset);
+        while (offset < raf.length()) {
+            int writer = raf.readInt();
+            int seq = raf.readInt();
+            assertEquals("records of one writer stay in order", nextSeq[writer]++, seq);
+            int length = 8 + (seq % 5) * 4;
+            raf.seek(offset + length);
+            assertEquals(offset, raf.readLong());
+            assertTrue(seen.add(writer + "/" + seq));
+            offset += length + LogFile.LONG_SIZE;
+        }
+        assertEquals(writers * records, seen.size());
+        assertEquals(buffer.end(), offset);
+    }
+
+    /**
+     * Forcing a record that is already durable does not force the file
+     * again.
+     */
+    @Test
+    public void forceIsSkippedWhenDurable() throws IOException {
+        LogBuffer buffer = new LogBuffer(raf.getChannel(), HEADER, 1024);
+        long lsn = buffer.append(record(0, 0, 8));
+        buffer.force(lsn);
+        long forces = buffer.getForceCount();
+        buffer.force(lsn);
+        assertEquals(forces, buffer.getForceCount());
+
+        buffer.force(buffer.append(record(0, 1, 8)));
+        assertEquals(forces + 1, buffer.getForceCount());
+        buffer.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
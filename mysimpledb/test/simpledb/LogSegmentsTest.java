@@ -0,0 +1,180 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest {
+    private static final long SEGMENT = 256;
+
+    private File dir;
+    private File log;
+    private LogSegments segments;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("logsegments").toFile();
+        log = new File(dir, "log");
+        segments = new LogSegments(log, SEGMENT);
+        segments.reset(SEGMENT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        segments.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private int files() {
+        return dir.listFiles().length;
+    }
+
+    private static ByteBuffer bytes(int length, int seed) {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            b.put((byte) (seed + i));
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * A write that crosses segments is read back intact, and every segment
+     * file has the segment size.
+     */
+    @Test
+    public void writesSpanSegments() throws IOException {
+        assertEquals(600, segments.write(bytes(600, 7), 100));
+        assertEquals(700, segments.end());
+        assertEquals(3, segments.getSegmentCount());
+        for (File f : dir.listFiles()) {
+            assertEquals(SEGMENT, f.length());
+        }
+
+        LogSegments.Reader reader = segments.reader(false);
+        reader.seek(100);
+        byte[] read = new byte[600];
+        reader.readFully(read);
+        assertEquals(bytes(600, 7), ByteBuffer.wrap(read));
+        assertEquals(-1, reader.read());
+    }
+
+    /**
+     * Truncated segments are kept as spares and reused for later LSNs,
+     * instead of creating files.
+     */
+    @Test
+    public void truncatedSegmentsAreRecycled() throws IOException {
+        segments.write(bytes(4 * (int) SEGMENT, 1), 0);
+        assertEquals(4, files());
+
+        assertEquals(2, segments.truncate(2 * SEGMENT + 10));
+        assertEquals(2, segments.getSegmentCount());
+        assertEquals(2, segments.getSpareCount());
+
+        segments.write(bytes(2 * (int) SEGMENT, 2), 4 * SEGMENT);
+        assertEquals(4, files());
+        assertEquals(0, segments.getSpareCount());
+        LogSegments.Reader reader = segments.reader(false);
+        reader.seek(4 * SEGMENT);
+        byte[] read = new byte[2 * (int) SEGMENT];
+        reader.readFully(read);
+        assertEquals(bytes(2 * (int) SEGMENT, 2), ByteBuffer.wrap(read));
+    }
+
+    /**
+     * A log started over begins past every LSN of the old one, and the
+     * segments are found again when the log is opened.
+     */
+    @Test
+    public void resetAndReopen() throws IOException {
+        segments.write(bytes(300, 3), 0);
+        long start = segments.reset(SEGMENT);
+        assertTrue(start >= 2 * SEGMENT);
+        segments.write(bytes(50, 4), start);
+        segments.force();
+        segments.close();
+
+        segments = new LogSegments(log, 2 * SEGMENT);
+        assertEquals(SEGMENT, segments.getSegmentSize());
+        segments.setEnd(start + 50);
+        segments.truncate(start);
+        assertEquals(1, segments.getSegmentCount());
+        LogSegments.Reader reader = segments.reader(false);
+        reader.seek(start);
+        byte[] read = new byte[50];
+        reader.readFully(read);
+        assertEquals(bytes(50, 4), ByteBuffer.wrap(read));
+    }
+
+    /**
+     * A segment that was being filled when the log crashed is not taken for
+     * one, and does not decide the segment size.
+     */
+    @Test
+    public void unfinishedSegmentIsDropped() throws IOException {
+        segments.write(bytes(100, 5), 0);
+        segments.force();
+        segments.close();
+        RandomAccessFile unfinished = new RandomAccessFile(new File(dir, "log.new"), "rw");
+        unfinished.setLength(SEGMENT / 2);
+        unfinished.close();
+
+        segments = new LogSegments(log, 2 * SEGMENT);
+        assertEquals(SEGMENT, segments.getSegmentSize());
+        assertEquals(1, files());
+        segments.setEnd(100);
+        segments.write(bytes((int) SEGMENT, 6), 100);
+        for (File f : dir.listFiles()) {
+            assertEquals(SEGMENT, f.length());
+        }
+    }
+
+    /**
+     * Reading forward and backward across windows and segments sees every
+     * value where it was written.
+     */
+    @Test
+    public void readerWindowBothDirections() throws IOException {
+        long start = segments.reset(64 << 10);
+        int count = 3 * LogSegments.READ_WINDOW / 8 + 5;
+        ByteBuffer values = ByteBuffer.allocate(count * 8);
+        for (int i = 0; i < count; i++) {
+            values.putLong(start + i * 8);
+        }
+        values.flip();
+        segments.write(values, start);
+
+        LogSegments.Reader reader = segments.reader(false);
+        reader.seek(start);
+        for (int i = 0; i < count; i++) {
+            assertEquals(start + i * 8, reader.readLong());
+        }
+        assertEquals(-1, reader.read());
+        for (int i = count - 1; i >= 0; i--) {
+            reader.seek(start + i * 8);
+            assertEquals(start + i * 8, reader.readLong());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class LogUndoChainTest extends TestUtil.CreateHeapFile {
+    private HeapFile other;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        File otherFile = File.createTempFile("other", ".dat");
+        otherFile.deleteOnExit();
+        new File(otherFile.getPath() + ".lsn").deleteOnExit();   // its page LSNs
+        other = Utility.createEmptyHeapFile(otherFile.getAbsolutePath(), 2);
+    }
+
+    private int count(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * Rolling back a transaction reads only its own records: it still works
+     * when every record logged after its last one is unreadable.
+     */
+    @Test
+    public void rollbackSkipsOtherTransactions() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+        log.force();
+        long from = log.getSegments().end();
+
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), other.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        log.force();
+        byte[] garbage = new byte[(int) (log.getSegments().end() - from)];
+        Arrays.fill(garbage, (byte) 0xff);
+        log.getSegments().write(ByteBuffer.wrap(garbage), from);
+
+        t1.transactionComplete(true);
+        assertEquals(0, count(empty));
+        assertEquals(20, count(other));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogUndoChainTest.class);
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest {
+    private static final int CAPACITY = 8;
+    private static final int TABLE = 1;
+
+    /**
+     * Every page may be evicted.
+     */
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    /**
+     * Drives a policy the way a BufferPool shard does: a request for a page
+     * that is not resident evicts a victim if the shard is full.
+     */
+    private static class Driver {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<PageId>();
+        int misses;
+
+        Driver(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        void request(int pgNo) {
+            PageId pid = new HeapPageId(TABLE, pgNo);
+            if (resident.contains(pid)) {
+                policy.recordAccess(pid);
+                return;
+            }
+            misses++;
+            boolean frequent = policy.recordMiss(pid);
+            if (resident.size() == CAPACITY) {
+                PageId victim = policy.chooseVictim(ANY);
+                assertTrue("victim " + victim + " is not resident", resident.remove(victim));
+            }
+            policy.recordInsert(pid, frequent);
+            resident.add(pid);
+        }
+    }
+
+    /**
+     * Touches a small hot set repeatedly (mixed with a few pages that are
+     * only used once), scans many cold pages once, and returns how many hot
+     * pages had to be reread afterwards.
+     */
+    private int hotMissesAfterScan(ReplacementPolicy.Kind kind) {
+        Driver d = new Driver(kind.create(CAPACITY));
+        int once = 1000;
+        for (int round = 0; round < 8; round++) {
+            for (int hot = 0; hot < CAPACITY / 2; hot++) {
+                d.request(hot);
+                d.request(once++);
+            }
+        }
+        for (int cold = 100; cold < 100 + 4 * CAPACITY; cold++) {
+            d.request(cold);
+        }
+        int before = d.misses;
+        for (int hot = 0; hot < CAPACITY / 2; hot++) {
+            d.request(hot);
+        }
+        return d.misses - before;
+    }
+
+    @Test
+    public void clockIsNotScanResistant() {
+        assertTrue(hotMissesAfterScan(ReplacementPolicy.Kind.CLOCK) > 0);
+    }
+
+    @Test
+    public void lruKKeepsHotSetThroughScan() {
+        assertEquals(0, hotMissesAfterScan(ReplacementPolicy.Kind.LRU_K));
+    }
+
+    @Test
+    public void twoQKeepsHotSetThroughScan() {
+        assertEquals(0, hotMissesAfterScan(ReplacementPolicy.Kind.TWO_Q));
+    }
+
+    @Test
+    public void arcKeepsHotSetThroughScan() {
+        assertEquals(0, hotMissesAfterScan(ReplacementPolicy.Kind.ARC));
+    }
+
+    /**
+     * No policy may choose a page that is not evictable, and each reports
+     * that there is no victim when nothing is.
+     */
+    @Test
+    public void respectsEvictable() {
+        final PageId pinned = new HeapPageId(TABLE, 0);
+        ReplacementPolicy.Evictable allButFirst = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pinned);
+            }
+        };
+        ReplacementPolicy.Evictable none = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return false;
+            }
+        };
+
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(2);
+            PageId other = new HeapPageId(TABLE, 1);
+            policy.recordInsert(pinned, policy.recordMiss(pinned));
+            policy.recordInsert(other, policy.recordMiss(other));
+            assertNull(kind.toString(), policy.chooseVictim(none));
+            assertEquals(kind.toString(), other, policy.chooseVictim(allButFirst));
+            assertNull(kind.toString(), policy.chooseVictim(allButFirst));
+        }
+    }
+
+    /**
+     * A removed page is no longer a candidate victim.
+     */
+    @Test
+    public void removeForgetsPage() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(2);
+            PageId p0 = new HeapPageId(TABLE, 0);
+            PageId p1 = new HeapPageId(TABLE, 1);
+            policy.recordInsert(p0, policy.recordMiss(p0));
+            policy.recordInsert(p1, policy.recordMiss(p1));
+            policy.recordRemove(p0);
+            assertEquals(kind.toString(), p1, policy.chooseVictim(ANY));
+            assertNull(kind.toString(), policy.chooseVictim(ANY));
+        }
+    }
+
+    // evicts a page, brings it back with a miss for another page in
+    // between or not, and returns the order the pages are then evicted in
+    private static List<PageId> victimsAfterReturn(ReplacementPolicy.Kind kind, boolean interleaved) {
+        // room for both pages once one is evicted
+        ReplacementPolicy policy = kind.create(5);
+        for (int i = 0; i < 4; i++) {
+            PageId pid = new HeapPageId(TABLE, i);
+            policy.recordInsert(pid, policy.recordMiss(pid));
+        }
+        PageId returning = policy.chooseVictim(ANY);
+        PageId other = new HeapPageId(TABLE, 9);
+        if (interleaved) {
+            boolean frequent = policy.recordMiss(returning);
+            policy.recordInsert(other, policy.recordMiss(other));
+            policy.recordInsert(returning, frequent);
+        } else {
+            policy.recordInsert(returning, policy.recordMiss(returning));
+            policy.recordInsert(other, policy.recordMiss(other));
+        }
+        List<PageId> victims = new ArrayList<PageId>();
+        PageId victim;
+        while ((victim = policy.chooseVictim(ANY)) != null) {
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    /**
+     * A page that comes back while a ghost list still remembers it is
+     * treated the same when another miss is recorded before it is inserted,
+     * as happens when the shard reads pages for several requests at once.
+     */
+    @Test
+    public void interleavedMissesKeepHistory() {
+        ReplacementPolicy.Kind[] ghostLists = {ReplacementPolicy.Kind.TWO_Q, ReplacementPolicy.Kind.ARC};
+        for (ReplacementPolicy.Kind kind : ghostLists) {
+            assertEquals(kind.toString(), victimsAfterReturn(kind, false), victimsAfterReturn(kind, true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
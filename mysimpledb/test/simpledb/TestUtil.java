@@ -410,6 +410,8 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            new File(emptyFile.getPath() + ".lsn").deleteOnExit();   // its page LSNs
+            LogFile.deleteSegmentsOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Tests for recovery with page LSNs, the dirty page table and prevLSN
+ * chains.
+ */
+public class LogAriesTest extends LogTestBase {
+
+    /**
+     * Recovery does not read the log before the last checkpoint when no
+     * transaction was active then.
+     */
+    @Test
+    public void testRecoveryStartsAtCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3, 0);
+        t.commit();
+
+        // wreck everything before the checkpoint
+        RandomAccessFile log = new RandomAccessFile(new File("log"), "r");
+        long checkpoint = log.readLong();
+        log.readLong();
+        long first = log.readLong();
+        log.close();
+        for (File f : new File(".").getAbsoluteFile().listFiles()) {
+            if (!f.getName().matches("log\\.[0-9a-f]{16}")) {
+                continue;
+            }
+            long start = Long.parseLong(f.getName().substring(4), 16);
+            long from = Math.max(first, start);
+            long to = Math.min(checkpoint, start + f.length());
+            if (from < to) {
+                RandomAccessFile segment = new RandomAccessFile(f, "rw");
+                byte[] garbage = new byte[(int) (to - from)];
+                Arrays.fill(garbage, (byte) 0xff);
+                segment.seek(from - start);
+                segment.write(garbage);
+                segment.close();
+            }
+        }
+
+        crash();
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    /**
+     * A transaction that was active at the checkpoint is undone by following
+     * its chain back past the checkpoint.
+     */
+    @Test
+    public void testUndoLoserFromBeforeCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        insertRow(hf2, t1, 3, 0);
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf2, t1, 4, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf2, t, 3, false);
+        look(hf2, t, 4, false);
+        t.commit();
+    }
+
+    /**
+     * Redo spread over several threads repeats the history of every page,
+     * in order, and undo still follows it.
+     */
+    @Test
+    public void testParallelRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 600; i++) {
+            insertRow(hf1, t1, i, 0);
+        }
+        for (int i = 0; i < 300; i++) {
+            insertRow(hf2, t1, 1000 + i, 0);
+        }
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 2000, 0);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 0, true);
+        look(hf1, t, 599, true);
+        look(hf2, t, 1000, true);
+        look(hf2, t, 1299, true);
+        look(hf1, t, 2000, false);
+        t.commit();
+    }
+
+    /**
+     * Recovering again after a recovery, with nothing in between, changes
+     * nothing.
+     */
+    @Test
+    public void testRecoverTwice()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2, 0);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 3, 0);
+        t2.commit();
+
+        crash();
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+}
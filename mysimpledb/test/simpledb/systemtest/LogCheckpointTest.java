@@ -0,0 +1,153 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for fuzzy checkpoints and the checkpoints taken in the background.
+ */
+public class LogCheckpointTest extends LogTestBase {
+
+    private static final long WAIT_MS = 10 * 1000;
+
+    // the number of tuples on the first page of hf as it is on disk
+    private int tuplesOnDisk(HeapFile hf) {
+        if (hf.numPages() == 0) {
+            return 0;
+        }
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int count = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private long checkpointOffset() throws IOException {
+        RandomAccessFile log = new RandomAccessFile(new File("log"), "r");
+        try {
+            return log.readLong();
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * A checkpoint writes no pages, and recovery redoes what it left in the
+     * pool.
+     */
+    @Test
+    public void testCheckpointDoesNotFlush()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setCheckpointInterval(0);
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1, 0);
+        t.commit();
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, tuplesOnDisk(hf1));
+
+        crash();
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    /**
+     * A checkpoint does not need the BufferPool's monitor.
+     */
+    @Test
+    public void testCheckpointWhilePoolIsBusy() throws Exception {
+        setup();
+        doInsert(hf1, 1, -1);
+        final IOException[] failure = new IOException[1];
+        Thread checkpoint = new Thread() {
+            public void run() {
+                try {
+                    Database.getLogFile().logCheckpoint();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(WAIT_MS);
+            assertFalse("checkpoint waited for the BufferPool", checkpoint.isAlive());
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Appending more log than the threshold triggers a checkpoint.
+     */
+    @Test
+    public void testLogSizeTriggersCheckpoint() throws Exception {
+        setup();
+        Database.getLogFile().setCheckpointLogSize(1);
+        doInsert(hf1, 1, -1);
+
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (checkpointOffset() == -1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("no checkpoint was taken", checkpointOffset() != -1);
+    }
+
+    /**
+     * The cleaner writes back the pages that were dirty at the last
+     * checkpoint.
+     */
+    @Test
+    public void testCleanerWritesPagesDirtyAtCheckpoint() throws Exception {
+        setup();
+        Database.getLogFile().setCheckpointInterval(0);
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 1, 0);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (tuplesOnDisk(hf1) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, tuplesOnDisk(hf1));
+    }
+
+    /**
+     * Closing the log waits for a background checkpoint that is being
+     * taken, and no checkpoint is taken after it.
+     */
+    @Test
+    public void testCloseWaitsForCheckpoint() throws Exception {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setCheckpointInterval(1);
+        doInsert(hf1, 1, -1);
+        Thread.sleep(20);
+        log.close();
+        try {
+            log.logCheckpoint();
+            fail("checkpointed a closed log");
+        } catch (IOException expected) {
+        }
+    }
+}
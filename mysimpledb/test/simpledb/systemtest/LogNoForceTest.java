@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 /**
@@ -53,6 +55,69 @@ public class LogNoForceTest extends LogTestBase {
         HeapPage after = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
         assertTrue("Should be the same provided commit doesn't flush",
                 Arrays.equals(before.getPageData(), after.getPageData()));
+
+        // ...but the committed row survives a crash
+        crash();
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 10, true);
+        look(hf1, t2, 11, true);
+        t2.commit();
+    }
+
+    @Test
+    public void testForceSkipsDurableLog() throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+
+        long forces = log.getForceCount();
+        log.force();
+        assertEquals("nothing was appended since the commit forced the log", forces, log.getForceCount());
+    }
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        setup();
+        final LogFile log = Database.getLogFile();
+        final int committers = 8;
+        final Transaction[] ts = new Transaction[committers];
+        Thread[] threads = new Thread[committers];
+        final Exception[] failure = new Exception[1];
+
+        long forces = log.getForceCount();
+        for (int i = 0; i < committers; i++) {
+            ts[i] = new Transaction();
+            ts[i].start();
+            final Transaction t = ts[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        t.commit();
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        for (Transaction t : ts) {
+            assertFalse(log.isActive(t.getId()));
+        }
+        assertTrue("each commit forces the log at most once",
+                log.getForceCount() - forces <= committers);
     }
 
 }
@@ -0,0 +1,108 @@
+package simpledb.systemtest;
+
+import org.junit.After;
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for recycling the segments of the log after a checkpoint.
+ */
+public class LogTruncateTest extends LogTestBase {
+
+    private static final long SEGMENT = 8 << 10;
+
+    @After
+    public void resetSegmentSize() {
+        LogFile.resetSegmentSize();
+    }
+
+    private void smallSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(SEGMENT);
+        setup();
+        Database.getLogFile().setCheckpointInterval(0);
+        Database.getLogFile().setCheckpointLogSize(0);
+        // start the log over, so that its header describes the new log
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+    }
+
+    // the LSN of the oldest record kept, from the header of the log
+    private long firstLSN() throws IOException {
+        RandomAccessFile log = new RandomAccessFile(new File("log"), "r");
+        try {
+            log.seek(2 * 8);
+            return log.readLong();
+        } finally {
+            log.close();
+        }
+    }
+
+    // commits enough rows to fill a few segments
+    private void fillLog(int from)
+            throws IOException, DbException, TransactionAbortedException {
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 20; j++) {
+                insertRow(hf2, t, from + i * 20 + j, 0);
+            }
+            t.commit();
+        }
+    }
+
+    /**
+     * A checkpoint after the pages are written out recycles the segments
+     * before it, and recovery still finds everything.
+     */
+    @Test
+    public void testCheckpointRecyclesSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        smallSegments();
+        long first = firstLSN();
+        fillLog(1000);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertTrue("no segment was recycled", firstLSN() >= first + 2 * SEGMENT);
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf2, t, 1000, true);
+        look(hf2, t, 1399, true);
+        t.commit();
+    }
+
+    /**
+     * The records of a transaction that is still running are kept, so that
+     * it can be rolled back.
+     */
+    @Test
+    public void testActiveTransactionKeepsItsRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        smallSegments();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        long first = firstLSN();
+
+        fillLog(1000);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(firstLSN() <= first + SEGMENT);
+
+        t1.transactionComplete(true);
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, false);
+        look(hf2, t, 1000, true);
+        t.commit();
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+import simpledb.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the tuple-level INSERT and DELETE log records.
+ */
+public class LogTupleTest extends LogTestBase {
+
+    private long logSize() throws IOException {
+        Database.getLogFile().force();
+        return new File("log").length();
+    }
+
+    // delete the tuple whose first field is v1
+    private void deleteRow(HeapFile hf, Transaction t, int v1)
+            throws DbException, TransactionAbortedException, IOException {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        Tuple victim = null;
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == v1) {
+                victim = tu;
+            }
+        }
+        scan.close();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+    }
+
+    @Test
+    public void testInsertLogsTupleNotPage()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        long before = logSize();
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 2, 0);
+        t.commit();
+        assertTrue("a one-tuple insert should not log whole pages",
+                logSize() - before < BufferPool.getPageSize());
+    }
+
+    @Test
+    public void testAbortKeepsCommittedChangesOnPage()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // T1 commits, but its page stays dirty in the pool
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        t1.commit();
+
+        // T2 changes the same page and aborts
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 2, 0);
+        t2.transactionComplete(true);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        look(hf1, t3, 1, true);
+        look(hf1, t3, 2, false);
+        t3.commit();
+
+        crash();
+        Transaction t4 = new Transaction();
+        t4.start();
+        look(hf1, t4, 1, true);
+        look(hf1, t4, 2, false);
+        t4.commit();
+    }
+
+    @Test
+    public void testRecoverDeletesAndLosers()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // a committed delete that never reached the disk is redone
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteRow(hf1, t1, 1);
+        t1.commit();
+
+        // an uncommitted delete and insert that did reach the disk are undone
+        Transaction t2 = new Transaction();
+        t2.start();
+        deleteRow(hf1, t2, 2);
+        insertRow(hf1, t2, 3, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, false);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests optimistic transactions, which read without locking and are
+ * validated at commit.
+ */
+public class OptimisticTest extends SimpleDbTestBase {
+
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    private Tuple first(HeapFile hf, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    private void insert(HeapFile hf, Transaction t, int value)
+            throws DbException, TransactionAbortedException, IOException {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[]{value, value}));
+    }
+
+    private void commitFails(Transaction t) throws IOException {
+        try {
+            t.commit();
+            fail("validation should have failed");
+        } catch (TransactionAbortedException expected) {
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testReadDoesNotWaitForWriter()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), first(hf, writer.getId()));
+
+        Transaction t = new Transaction(Transaction.Mode.OPTIMISTIC);
+        t.start();
+        SystemTestUtil.matchTuples(hf, t.getId(), tuples);
+
+        // the change it did not see was undone, so it is still valid
+        writer.abort();
+        t.commit();
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testCommittedWriteInvalidatesRead()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+
+        Transaction t = new Transaction(Transaction.Mode.OPTIMISTIC);
+        t.start();
+        SystemTestUtil.matchTuples(hf, t.getId(), tuples);
+        insert(other, t, -1);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(hf, writer, -2);
+        writer.commit();
+
+        commitFails(t);
+        // its write was rolled back
+        Transaction check = new Transaction();
+        check.start();
+        DbFileIterator it = other.iterator(check.getId());
+        it.open();
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() != -1);
+        }
+        it.close();
+        check.commit();
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testWriteSkewFailsSecondToCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+
+        // each reads what the other writes
+        Transaction t1 = new Transaction(Transaction.Mode.OPTIMISTIC);
+        Transaction t2 = new Transaction(Transaction.Mode.OPTIMISTIC);
+        t1.start();
+        t2.start();
+        first(a, t1.getId());
+        first(b, t2.getId());
+        insert(b, t1, -1);
+        insert(a, t2, -2);
+
+        t1.commit();
+        commitFails(t2);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testValidatedCommitIsNumberedWhenLogged()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+
+        Transaction t1 = new Transaction(Transaction.Mode.OPTIMISTIC);
+        Transaction t2 = new Transaction(Transaction.Mode.OPTIMISTIC);
+        t1.start();
+        t2.start();
+        first(a, t1.getId());
+        first(b, t2.getId());
+        insert(b, t1, -1);
+        insert(a, t2, -2);
+
+        // t1 is valid but its commit is not logged yet: snapshots do not see
+        // it, while t2 already conflicts with it
+        Database.getBufferPool().validate(t1.getId());
+        Transaction snapshot = new Transaction(Transaction.Mode.SNAPSHOT);
+        snapshot.start();
+        commitFails(t2);
+        t1.commit();
+        DbFileIterator it = b.iterator(snapshot.getId());
+        it.open();
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() != -1);
+        }
+        it.close();
+        snapshot.commit();
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import org.junit.Before;
 
 import simpledb.Database;
+import simpledb.LogFile;
 
 /**
  * Base class for all SimpleDb test classes.
@@ -15,6 +16,7 @@ public class SimpleDbTestBase {
      */
     @Before
     public void setUp() throws Exception {
+        LogFile.deleteSegmentsOnExit();
         Database.reset();
     }
 
@@ -0,0 +1,95 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests read-only transactions, which read a snapshot without locking.
+ */
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    private Tuple first(HeapFile hf, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testSnapshotDoesNotWaitForWriter()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+
+        // the writer holds its locks while the snapshot reads
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), first(hf, writer.getId()));
+        Database.getBufferPool().insertTuple(writer.getId(), hf.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+
+        Transaction before = new Transaction(true);
+        before.start();
+        SystemTestUtil.matchTuples(hf, before.getId(), tuples);
+
+        writer.commit();
+
+        // an old snapshot still reads as of its start
+        SystemTestUtil.matchTuples(hf, before.getId(), tuples);
+        before.commit();
+
+        ArrayList<ArrayList<Integer>> now = new ArrayList<ArrayList<Integer>>(tuples.subList(1, tuples.size()));
+        ArrayList<Integer> inserted = new ArrayList<Integer>();
+        inserted.add(-1);
+        inserted.add(-1);
+        now.add(inserted);
+        Transaction after = new Transaction(true);
+        after.start();
+        SystemTestUtil.matchTuples(hf, after.getId(), now);
+        after.commit();
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testSnapshotIgnoresAbortedChanges()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+
+        Transaction snapshot = new Transaction(true);
+        snapshot.start();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), first(hf, writer.getId()));
+        Database.getBufferPool().insertTuple(writer.getId(), hf.getId(), Utility.getHeapTuple(new int[]{-1, -1}));
+        writer.abort();
+
+        SystemTestUtil.matchTuples(hf, snapshot.getId(), tuples);
+        snapshot.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    @Test
+    public void testSnapshotCannotWrite()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction snapshot = new Transaction(true);
+        snapshot.start();
+        try {
+            Database.getBufferPool().getPage(snapshot.getId(),
+                    new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            fail("a read-only transaction should not get a page to write");
+        } catch (DbException expected) {
+        }
+        snapshot.commit();
+    }
+}
@@ -85,6 +85,8 @@ public class SystemTestUtil {
         // Convert the tuples list to a heap file and open it
         File temp = File.createTempFile("table", ".dat");
         temp.deleteOnExit();
+        new File(temp.getPath() + ".lsn").deleteOnExit();   // its page LSNs
+        LogFile.deleteSegmentsOnExit();
         HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), columns);
         return temp;
     }